@@ -21,14 +21,14 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceManager;
 
 import com.android.deskclock.alarms.AlarmStateManager;
 import com.android.deskclock.provider.Alarm;
 
 import com.android.deskclock.provider.AlarmInstance;
-import com.android.deskclock.timer.TimerObj;
+import com.android.deskclock.stopwatch.LapStore;
+import com.android.deskclock.timer.TimerStore;
 
 public class AlarmInitReceiver extends BroadcastReceiver {
 
@@ -45,37 +45,64 @@ public class AlarmInitReceiver extends BroadcastReceiver {
         Log.v("AlarmInitReceiver " + action);
 
         final PendingResult result = goAsync();
-        final WakeLock wl = AlarmAlertWakeLock.createPartialWakeLock(context);
-        wl.acquire();
+        final ReceiverWakeLock wl = ReceiverWakeLock.acquire(context, action);
 
-        // We need to increment the global id out of the async task to prevent
-        // race conditions
-        AlarmStateManager.updateGloablIntentId(context);
-        AsyncHandler.post(new Runnable() {
-            @Override public void run() {
-                // Remove the snooze alarm after a boot.
-                if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
-                    // Clear stopwatch and timers data
-                    SharedPreferences prefs =
-                            PreferenceManager.getDefaultSharedPreferences(context);
-                    Log.v("AlarmInitReceiver - Reset timers and clear stopwatch data");
-                    TimerObj.resetTimersInSharedPrefs(prefs);
-                    Utils.clearSwSharedPref(prefs);
-
-                    if (!prefs.getBoolean(PREF_VOLUME_DEF_DONE, false)) {
-                        // Fix the default
-                        Log.v("AlarmInitReceiver - resetting volume button default");
-                        switchVolumeButtonDefault(prefs);
-                    }
-                }
+        // A boot loses all notifications and a locale change needs them rebuilt, so those
+        // re-register every instance. Plain time changes only touch instances that moved.
+        final boolean incremental = Intent.ACTION_TIME_CHANGED.equals(action)
+                || Intent.ACTION_TIMEZONE_CHANGED.equals(action);
 
-                // Update all the alarm instances on time change event
-                AlarmStateManager.fixAlarmInstances(context);
+        // Cached alarm times are in the old time zone
+        if (Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+            AlarmInstance.onTimeZoneChanged();
+        }
 
+        // We need to increment the global id out of the async task to prevent
+        // race conditions. Incremental fixes keep the existing notifications, so the intents
+        // they hold must stay valid.
+        if (!incremental) {
+            AlarmStateManager.updateGloablIntentId(context);
+        }
+        final Runnable finish = new Runnable() {
+            @Override public void run() {
                 result.finish();
                 Log.v("AlarmInitReceiver finished");
                 wl.release();
             }
+        };
+        AsyncHandler.execute(new Runnable() {
+            @Override public void run() {
+                wl.onWorkStarted();
+                boolean fixing = false;
+                try {
+                    // Remove the snooze alarm after a boot.
+                    if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
+                        // Clear stopwatch and timers data
+                        SharedPreferences prefs =
+                                PreferenceManager.getDefaultSharedPreferences(context);
+                        Log.v("AlarmInitReceiver - Reset timers and clear stopwatch data");
+                        TimerStore.resetTimers(context);
+                        TimerStore.flush(context);
+                        Utils.clearSwSharedPref(prefs);
+                        LapStore.getInstance(context).clear();
+
+                        if (!prefs.getBoolean(PREF_VOLUME_DEF_DONE, false)) {
+                            // Fix the default
+                            Log.v("AlarmInitReceiver - resetting volume button default");
+                            switchVolumeButtonDefault(prefs);
+                        }
+                    }
+
+                    // Update all the alarm instances on time change event, the broadcast is
+                    // finished once they are all fixed
+                    AlarmStateManager.fixAlarmInstances(context, incremental, finish);
+                    fixing = true;
+                } finally {
+                    if (!fixing) {
+                        finish.run();
+                    }
+                }
+            }
         });
     }
 
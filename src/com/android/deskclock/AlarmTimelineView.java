@@ -32,14 +32,15 @@ import android.util.AttributeSet;
 import android.view.View;
 
 import com.android.deskclock.provider.Alarm;
+import com.android.deskclock.provider.AlarmTimeCalculator;
 
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
 import java.util.TreeMap;
 
 /**
@@ -54,8 +55,6 @@ public class AlarmTimelineView extends View {
     private static final String FORMAT_12_HOUR = "E h mm a";
     private static final String FORMAT_24_HOUR = "E H mm";
 
-    private static final int DAYS_IN_WEEK = 7;
-
     private int mAlarmTimelineColor;
     private int mAlarmTimelineLength;
     private int mAlarmTimelineMarginTop;
@@ -122,44 +121,29 @@ public class AlarmTimelineView extends View {
         @Override
         protected synchronized Void doInBackground(Void... params) {
             List<Alarm> enabledAlarmList = Alarm.getAlarms(mResolver, Alarm.ENABLED + "=1");
-            final Date currentTime = mCalendar.getTime();
+            final TimeZone timeZone = mCalendar.getTimeZone();
+            // Alarms set to the current minute are still shown, so start just before it
+            final long startTime = mCalendar.getTimeInMillis() / DateUtils.MINUTE_IN_MILLIS
+                    * DateUtils.MINUTE_IN_MILLIS - 1;
             mAlarmTimes.clear();
             for (Alarm alarm : enabledAlarmList) {
-                int hour = alarm.hour;
-                int minutes = alarm.minutes;
-                HashSet<Integer> repeatingDays = alarm.daysOfWeek.getSetDays();
-
-                // If the alarm is not repeating,
-                if (repeatingDays.isEmpty()) {
-                    mCalendar.add(Calendar.DATE, getDaysFromNow(hour, minutes));
-                    mCalendar.set(Calendar.HOUR_OF_DAY, alarm.hour);
-                    mCalendar.set(Calendar.MINUTE, alarm.minutes);
-                    Date date = mCalendar.getTime();
-
-                    if (!mAlarmTimes.containsKey(date)) {
-                        // Add alarm if there is no other alarm with this date.
-                        mAlarmTimes.put(date, new AlarmTimeNode(date, false));
-                    }
-                    mCalendar.setTime(currentTime);
-                    continue;
-                }
-
-                // If the alarm is repeating, iterate through each alarm date.
-                for (int day : alarm.daysOfWeek.getSetDays()) {
-                    mCalendar.add(Calendar.DATE, getDaysFromNow(day, hour, minutes));
-                    mCalendar.set(Calendar.HOUR_OF_DAY, alarm.hour);
-                    mCalendar.set(Calendar.MINUTE, alarm.minutes);
-                    Date date = mCalendar.getTime();
-
+                // A repeating alarm fires once on each of its days within the next week
+                final int daysOfWeek = alarm.daysOfWeek.getBitSet();
+                final boolean isRepeating = alarm.daysOfWeek.isRepeating();
+                final long[] times = new long[isRepeating ? Integer.bitCount(daysOfWeek) : 1];
+                final int count = AlarmTimeCalculator.getNextAlarmTimes(startTime, timeZone,
+                        alarm.hour, alarm.minutes, daysOfWeek, times);
+
+                for (int i = 0; i < count; i++) {
+                    Date date = new Date(times[i]);
                     if (!mAlarmTimes.containsKey(date)) {
                         // Add alarm if there is no other alarm with this date.
-                        mAlarmTimes.put(date, new AlarmTimeNode(mCalendar.getTime(), true));
-                    } else {
+                        mAlarmTimes.put(date, new AlarmTimeNode(date, isRepeating));
+                    } else if (isRepeating) {
                         // If there is another alarm with this date, make it
                         // repeating.
                         mAlarmTimes.get(date).isRepeating = true;
                     }
-                    mCalendar.setTime(currentTime);
                 }
             }
             return null;
@@ -170,35 +154,6 @@ public class AlarmTimelineView extends View {
             requestLayout();
             AlarmTimelineView.this.invalidate();
         }
-
-        // Returns whether this non-repeating alarm is firing today or tomorrow.
-        private int getDaysFromNow(int hour, int minutes) {
-            final int currentHour = mCalendar.get(Calendar.HOUR_OF_DAY);
-            if (hour > currentHour ||
-                    (hour == currentHour && minutes >= mCalendar.get(Calendar.MINUTE)) ) {
-                return 0;
-            }
-            return 1;
-        }
-
-        // Returns the days from now of the next instance of this alarm, given the repeated day.
-        private int getDaysFromNow(int day, int hour, int minute) {
-            final int currentDay = mCalendar.get(Calendar.DAY_OF_WEEK);
-            if (day != currentDay) {
-                if (day < currentDay) {
-                    day += DAYS_IN_WEEK;
-                }
-                return day - currentDay;
-            }
-
-            final int currentHour = mCalendar.get(Calendar.HOUR_OF_DAY);
-            if (hour != currentHour) {
-                return (hour < currentHour) ? DAYS_IN_WEEK : 0;
-            }
-
-            final int currentMinute = mCalendar.get(Calendar.MINUTE);
-            return (minute < currentMinute) ? DAYS_IN_WEEK : 0;
-        }
     }
 
     public AlarmTimelineView(Context context) {
@@ -37,13 +37,17 @@ public class AlarmUtils {
     public static final String FRAG_TAG_TIME_PICKER = "time_dialog";
 
     public static String getFormattedTime(Context context, Calendar time) {
+        return getFormattedTime(context, time.getTimeInMillis());
+    }
+
+    public static String getFormattedTime(Context context, long timeInMillis) {
         String skeleton = DateFormat.is24HourFormat(context) ? "EHm" : "Ehma";
         String pattern = DateFormat.getBestDateTimePattern(Locale.getDefault(), skeleton);
-        return (String) DateFormat.format(pattern, time);
+        return (String) DateFormat.format(pattern, timeInMillis);
     }
 
     public static String getAlarmText(Context context, AlarmInstance instance) {
-        String alarmTimeStr = getFormattedTime(context, instance.getAlarmTime());
+        String alarmTimeStr = getFormattedTime(context, instance.getAlarmTimeInMillis());
         return !instance.mLabel.isEmpty() ? alarmTimeStr + " - " + instance.mLabel
                 : alarmTimeStr;
     }
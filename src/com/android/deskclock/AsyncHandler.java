@@ -16,24 +16,240 @@
 
 package com.android.deskclock;
 
-import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Helper class for managing the background thread used to perform io operations
+ * Helper class for managing the background threads used to perform io operations
  * and handle async broadcasts.
+ *
+ * Work runs on a shared thread pool through one of three lanes:
+ * <ul>
+ *     <li>{@link #post(Runnable)} runs alone, after everything posted before it and before
+ *     everything posted after it. Use it for work that touches many alarm instances.</li>
+ *     <li>{@link #post(long, Runnable)} runs in order with the other work posted for the same
+ *     key, in parallel with work for other keys.</li>
+ *     <li>{@link #execute(Runnable)} runs as soon as a thread is free, without any ordering.</li>
+ * </ul>
  */
 public final class AsyncHandler {
-    private static final HandlerThread sHandlerThread = new HandlerThread("AsyncHandler");
-    private static final Handler sHandler;
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Tasks that wait longer than this for their lane are logged.
+    private static final long SLOW_WAIT_MILLIS = 1000;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(POOL_SIZE,
+            POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "AsyncHandler #" + mCount.getAndIncrement());
+                }
+            });
 
     static {
-        sHandlerThread.start();
-        sHandler = new Handler(sHandlerThread.getLooper());
+        sExecutor.allowCoreThreadTimeOut(true);
     }
 
+    private static final Object sLock = new Object();
+
+    // Ordered tasks that have not started yet, in posting order. Guarded by sLock.
+    private static final LinkedList<Task> sPending = new LinkedList<Task>();
+
+    // Keys of the keyed tasks that are running. Guarded by sLock.
+    private static final HashSet<Long> sRunningKeys = new HashSet<Long>();
+
+    // Number of ordered tasks that are running and whether one of them is global.
+    // Guarded by sLock.
+    private static int sRunningCount = 0;
+    private static boolean sGlobalRunning = false;
+
+    private static final Stats sGlobalStats = new Stats("global");
+    private static final Stats sKeyedStats = new Stats("keyed");
+    private static final Stats sPoolStats = new Stats("pool");
+
+    /**
+     * Run r after all the work posted before it has finished, with nothing else running.
+     */
     public static void post(Runnable r) {
-        sHandler.post(r);
+        enqueue(new Task(null, r, sGlobalStats));
+    }
+
+    /**
+     * Run r after the work posted before it with the same key has finished. Work posted with
+     * different keys runs in parallel.
+     *
+     * @param key of the lane, ie. an alarm instance id
+     * @param r work to run
+     */
+    public static void post(long key, Runnable r) {
+        enqueue(new Task(key, r, sKeyedStats));
+    }
+
+    /**
+     * Run r on the shared pool, independently of any other work.
+     */
+    public static void execute(Runnable r) {
+        Task task = new Task(null, r, sPoolStats);
+        sPoolStats.onQueued(sExecutor.getQueue().size() + 1);
+        sExecutor.execute(task);
+    }
+
+    /**
+     * Print queue depth and latency metrics of the lanes.
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        synchronized (sLock) {
+            writer.print(prefix);
+            writer.println("AsyncHandler: pool=" + sExecutor.getPoolSize() +
+                    " active=" + sExecutor.getActiveCount() + " pending=" + sPending.size() +
+                    " running=" + sRunningCount + (sGlobalRunning ? " (global)" : ""));
+        }
+        sGlobalStats.dump(prefix + "  ", writer);
+        sKeyedStats.dump(prefix + "  ", writer);
+        sPoolStats.dump(prefix + "  ", writer);
+    }
+
+    private static void enqueue(Task task) {
+        synchronized (sLock) {
+            sPending.add(task);
+            task.mStats.onQueued(sPending.size());
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Start every pending task that is allowed to run. A keyed task can start once no earlier
+     * task with its key is pending or running. A global task can start once nothing is running
+     * and nothing was posted before it, and blocks every task posted after it.
+     */
+    private static void scheduleLocked() {
+        if (sGlobalRunning) {
+            return;
+        }
+
+        HashSet<Long> blockedKeys = null;
+        Iterator<Task> it = sPending.iterator();
+        while (it.hasNext()) {
+            Task task = it.next();
+            if (task.mKey == null) {
+                if (sRunningCount == 0 && blockedKeys == null) {
+                    it.remove();
+                    sGlobalRunning = true;
+                    startLocked(task);
+                }
+                return;
+            }
+
+            if (sRunningKeys.contains(task.mKey)
+                    || (blockedKeys != null && blockedKeys.contains(task.mKey))) {
+                if (blockedKeys == null) {
+                    blockedKeys = new HashSet<Long>();
+                }
+                blockedKeys.add(task.mKey);
+            } else {
+                it.remove();
+                sRunningKeys.add(task.mKey);
+                startLocked(task);
+            }
+        }
+    }
+
+    private static void startLocked(Task task) {
+        sRunningCount++;
+        sExecutor.execute(task);
+    }
+
+    private static void onTaskFinished(Task task) {
+        synchronized (sLock) {
+            sRunningCount--;
+            if (task.mKey == null) {
+                sGlobalRunning = false;
+            } else {
+                sRunningKeys.remove(task.mKey);
+            }
+            scheduleLocked();
+        }
+    }
+
+    private static final class Task implements Runnable {
+        final Long mKey;
+        final Runnable mRunnable;
+        final Stats mStats;
+        final long mPostTime = SystemClock.elapsedRealtime();
+
+        Task(Long key, Runnable runnable, Stats stats) {
+            mKey = key;
+            mRunnable = runnable;
+            mStats = stats;
+        }
+
+        @Override
+        public void run() {
+            final long startTime = SystemClock.elapsedRealtime();
+            try {
+                mRunnable.run();
+            } finally {
+                mStats.onFinished(startTime - mPostTime,
+                        SystemClock.elapsedRealtime() - startTime);
+                if (mStats != sPoolStats) {
+                    onTaskFinished(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue depth and latency metrics of a lane.
+     */
+    private static final class Stats {
+        private final String mName;
+        private int mCount;
+        private int mMaxDepth;
+        private long mTotalWait;
+        private long mMaxWait;
+        private long mTotalRun;
+        private long mMaxRun;
+
+        Stats(String name) {
+            mName = name;
+        }
+
+        synchronized void onQueued(int depth) {
+            mMaxDepth = Math.max(mMaxDepth, depth);
+        }
+
+        synchronized void onFinished(long wait, long run) {
+            mCount++;
+            mTotalWait += wait;
+            mMaxWait = Math.max(mMaxWait, wait);
+            mTotalRun += run;
+            mMaxRun = Math.max(mMaxRun, run);
+            if (wait > SLOW_WAIT_MILLIS) {
+                Log.w("AsyncHandler " + mName + " task waited " + wait + "ms to run " + run +
+                        "ms");
+            }
+        }
+
+        synchronized void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix);
+            writer.println(mName + ": tasks=" + mCount + " maxDepth=" + mMaxDepth +
+                    " wait(avg/max)=" + (mCount == 0 ? 0 : mTotalWait / mCount) + "/" + mMaxWait +
+                    "ms run(avg/max)=" + (mCount == 0 ? 0 : mTotalRun / mCount) + "/" + mMaxRun +
+                    "ms");
+        }
     }
 
     private AsyncHandler() {}
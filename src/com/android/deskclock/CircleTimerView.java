@@ -5,17 +5,24 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.util.AttributeSet;
 import android.view.View;
 
 import com.android.deskclock.stopwatch.Stopwatches;
 
+import java.io.PrintWriter;
+
 /**
  * Class to draw a circle for timers and stopwatches.
  * These two usages require two different animation modes:
  * Timer counts down. In this mode the animation is counter-clockwise and stops at 0.
  * Stopwatch counts up. In this mode the animation is clockwise and will run until stopped.
+ *
+ * While animating, only the part of the circle that changed since the last frame is
+ * invalidated: the arc swept by the boundary between the red and white arcs, and the old and
+ * new positions of the red dot. Any other change redraws the whole view.
  */
 public class CircleTimerView extends View {
 
@@ -41,6 +48,39 @@ public class CircleTimerView extends View {
     // Stopwatch mode is the default.
     private boolean mTimerMode = false;
 
+    // Sweeps at least this large redraw the whole view, their bounds are most of it anyway.
+    private static final float MAX_PARTIAL_SWEEP_DEGREES = 90;
+
+    // True until the next draw after a change other than the animation moving on.
+    private boolean mFullRedraw = true;
+    private final Rect mDirtyRect = new Rect();
+
+    // Frame time counters of every circle, for the dump. Only used on the main thread.
+    private static int sFrameCount;
+    private static int sPartialFrameCount;
+    private static long sTotalDrawNanos;
+    private static long sMaxDrawNanos;
+
+    private final Runnable mAnimationFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (!mAnimate || mIntervalStartTime == -1) {
+                return;
+            }
+            final float drawnPercent = getRedPercent();
+            mCurrentIntervalTime = Utils.getTimeNow() - mIntervalStartTime + mAccumulatedTime;
+            final float redPercent = getRedPercent();
+            if (mFullRedraw || !computeDirtyRect(drawnPercent, redPercent)) {
+                mFullRedraw = true;
+                invalidate();
+            } else if (!mDirtyRect.isEmpty()) {
+                invalidate(mDirtyRect);
+            }
+            // Nothing moved (a timer that ran out): the animation stays idle until the next
+            // change or draw.
+        }
+    };
+
     @SuppressWarnings("unused")
     public CircleTimerView(Context context) {
         this(context, null);
@@ -53,22 +93,26 @@ public class CircleTimerView extends View {
 
     public void setIntervalTime(long t) {
         mIntervalTime = t;
+        mFullRedraw = true;
         postInvalidate();
     }
 
     public void setMarkerTime(long t) {
         mMarkerTime = t;
+        mFullRedraw = true;
         postInvalidate();
     }
 
     public void reset() {
         mIntervalStartTime = -1;
         mMarkerTime = -1;
+        mFullRedraw = true;
         postInvalidate();
     }
     public void startIntervalAnimation() {
         mIntervalStartTime = Utils.getTimeNow();
         mAnimate = true;
+        mFullRedraw = true;
         invalidate();
         mPaused = false;
     }
@@ -76,6 +120,7 @@ public class CircleTimerView extends View {
         mAnimate = false;
         mIntervalStartTime = -1;
         mAccumulatedTime = 0;
+        mFullRedraw = true;
     }
 
     public boolean isAnimating() {
@@ -86,10 +131,12 @@ public class CircleTimerView extends View {
         mAnimate = false;
         mAccumulatedTime += Utils.getTimeNow() - mIntervalStartTime;
         mPaused = true;
+        mFullRedraw = true;
     }
 
     public void abortIntervalAnimation() {
         mAnimate = false;
+        mFullRedraw = true;
     }
 
     public void setPassedTime(long time, boolean drawRed) {
@@ -105,6 +152,7 @@ public class CircleTimerView extends View {
         if (drawRed) {
             mIntervalStartTime = Utils.getTimeNow();
         }
+        mFullRedraw = true;
         postInvalidate();
     }
 
@@ -131,10 +179,26 @@ public class CircleTimerView extends View {
 
     public void setTimerMode(boolean mode) {
         mTimerMode = mode;
+        mFullRedraw = true;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mFullRedraw = true;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(mAnimationFrame);
     }
 
     @Override
     public void onDraw(Canvas canvas) {
+        final long drawStart = System.nanoTime();
+        final boolean partial = !mFullRedraw;
+
         int xCenter = getWidth() / 2 + 1;
         int yCenter = getHeight() / 2;
 
@@ -149,7 +213,8 @@ public class CircleTimerView extends View {
                 drawRedDot(canvas, 0f, xCenter, yCenter, radius);
             }
         } else {
-            if (mAnimate) {
+            if (mAnimate && mFullRedraw) {
+                // Partial frames draw the time their dirty rect was computed for
                 mCurrentIntervalTime = Utils.getTimeNow() - mIntervalStartTime + mAccumulatedTime;
             }
             //draw a combination of red and white arcs to create a circle
@@ -157,9 +222,7 @@ public class CircleTimerView extends View {
             mArcRect.bottom = yCenter + radius;
             mArcRect.left =  xCenter - radius;
             mArcRect.right = xCenter + radius;
-            float redPercent = (float)mCurrentIntervalTime / (float)mIntervalTime;
-            // prevent timer from doing more than one full circle
-            redPercent = (redPercent > 1 && mTimerMode) ? 1 : redPercent;
+            float redPercent = getRedPercent();
 
             float whitePercent = 1 - (redPercent > 1 ? 1 : redPercent);
             // draw red arc here
@@ -192,11 +255,93 @@ public class CircleTimerView extends View {
             }
             drawRedDot(canvas, redPercent, xCenter, yCenter, radius);
         }
+        mFullRedraw = false;
         if (mAnimate) {
-            invalidate();
+            // Invalidate what moved on the next frame
+            removeCallbacks(mAnimationFrame);
+            postOnAnimation(mAnimationFrame);
         }
+
+        final long drawNanos = System.nanoTime() - drawStart;
+        sFrameCount++;
+        if (partial) {
+            sPartialFrameCount++;
+        }
+        sTotalDrawNanos += drawNanos;
+        sMaxDrawNanos = Math.max(sMaxDrawNanos, drawNanos);
    }
 
+    private float getRedPercent() {
+        float redPercent = (float)mCurrentIntervalTime / (float)mIntervalTime;
+        // prevent timer from doing more than one full circle
+        return (redPercent > 1 && mTimerMode) ? 1 : redPercent;
+    }
+
+    private float getDotAngle(float redPercent) {
+        return mTimerMode ? 270 - redPercent * 360 : 270 + redPercent * 360;
+    }
+
+    /**
+     * Set mDirtyRect to the bounds of the circle between the dot angles of two red percents,
+     * padded by the stroke and dot sizes. The rect is empty if the percents are the same.
+     *
+     * @return false if the change is too large, or not a number, for a partial redraw
+     */
+    private boolean computeDirtyRect(float fromPercent, float toPercent) {
+        final float sweep = Math.abs(toPercent - fromPercent) * 360;
+        if (Float.isNaN(sweep) || sweep >= MAX_PARTIAL_SWEEP_DEGREES) {
+            return false;
+        }
+        if (sweep == 0) {
+            mDirtyRect.setEmpty();
+            return true;
+        }
+
+        final int xCenter = getWidth() / 2 + 1;
+        final int yCenter = getHeight() / 2;
+        final float radius = Math.min(xCenter, yCenter) - mRadiusOffset;
+        final float fromAngle = getDotAngle(fromPercent);
+        final float toAngle = getDotAngle(toPercent);
+        final float startAngle = Math.min(fromAngle, toAngle);
+        final float endAngle = Math.max(fromAngle, toAngle);
+
+        final double startRadians = Math.toRadians(startAngle);
+        final double endRadians = Math.toRadians(endAngle);
+        float left = (float) Math.min(Math.cos(startRadians), Math.cos(endRadians));
+        float right = (float) Math.max(Math.cos(startRadians), Math.cos(endRadians));
+        float top = (float) Math.min(Math.sin(startRadians), Math.sin(endRadians));
+        float bottom = (float) Math.max(Math.sin(startRadians), Math.sin(endRadians));
+        // The arc reaches the edge of the circle at every multiple of 90 degrees it crosses
+        for (int angle = (int) Math.ceil(startAngle / 90) * 90; angle <= endAngle; angle += 90) {
+            switch (((angle / 90) % 4 + 4) % 4) {
+                case 0: right = 1; break;
+                case 1: bottom = 1; break;
+                case 2: left = -1; break;
+                default: top = -1; break;
+            }
+        }
+
+        // Anti-aliasing can touch the pixel past the stroke or dot
+        final float padding = Math.max(mStrokeSize / 2, mDotRadius) + 1;
+        mDirtyRect.set((int) Math.floor(xCenter + left * radius - padding),
+                (int) Math.floor(yCenter + top * radius - padding),
+                (int) Math.ceil(xCenter + right * radius + padding),
+                (int) Math.ceil(yCenter + bottom * radius + padding));
+        return true;
+    }
+
+    /**
+     * Print the frame counts and draw times of every circle.
+     */
+    public static void dumpFrameStats(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Circle timer frames:");
+        writer.print(prefix);
+        writer.println("  count=" + sFrameCount + " partial=" + sPartialFrameCount +
+                " draw(avg/max)=" + (sFrameCount == 0 ? 0 : sTotalDrawNanos / sFrameCount / 1000) +
+                "/" + sMaxDrawNanos / 1000 + "us");
+    }
+
     protected void drawRedDot(
             Canvas canvas, float degrees, int xCenter, int yCenter, float radius) {
         mPaint.setColor(mRedColor);
@@ -242,6 +387,7 @@ public class CircleTimerView extends View {
         mMarkerTime = prefs.getLong(key + PREF_CTV_MARKER_TIME, -1);
         mTimerMode = prefs.getBoolean(key + PREF_CTV_TIMER_MODE, false);
         mAnimate = (mIntervalStartTime != -1 && !mPaused);
+        mFullRedraw = true;
     }
 
     public void clearSharedPref(SharedPreferences prefs, String key) {
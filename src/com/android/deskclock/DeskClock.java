@@ -51,6 +51,8 @@ import com.android.deskclock.timer.TimerObj;
 import com.android.deskclock.timer.Timers;
 import com.android.deskclock.worldclock.CitiesActivity;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Locale;
@@ -223,6 +225,14 @@ public class DeskClock extends Activity implements LabelDialogFragment.TimerLabe
         outState.putInt(KEY_SELECTED_TAB, mActionBar.getSelectedNavigationIndex());
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        AsyncHandler.dump(prefix, writer);
+        ReceiverWakeLock.dump(prefix, writer);
+        CircleTimerView.dumpFrameStats(prefix, writer);
+    }
+
     public void clockButtonsOnClick(View v) {
         if (v == null) {
             return;
@@ -17,13 +17,13 @@
 package com.android.deskclock;
 
 import android.app.Activity;
+import android.app.NotificationManager;
 import android.content.ContentResolver;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
 import com.android.deskclock.alarms.AlarmStateManager;
@@ -32,10 +32,12 @@ import com.android.deskclock.provider.AlarmInstance;
 import com.android.deskclock.provider.DaysOfWeek;
 import com.android.deskclock.timer.TimerFragment;
 import com.android.deskclock.timer.TimerObj;
+import com.android.deskclock.timer.TimerStore;
 import com.android.deskclock.timer.Timers;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Iterator;
 import java.util.List;
 
 import static android.provider.AlarmClock.ACTION_SET_ALARM;
@@ -56,6 +58,18 @@ public class HandleApiCalls extends Activity {
     public static final long TIMER_MIN_LENGTH = 1000;
     public static final long TIMER_MAX_LENGTH = 24 * 60 * 60 * 1000;
 
+    // Extras of SET_TIMER to set many timers at once, in place of EXTRA_LENGTH and
+    // EXTRA_MESSAGE: an int[] of lengths in seconds and an optional String[] of labels.
+    public static final String EXTRA_TIMER_LENGTHS = "com.android.deskclock.extra.TIMER_LENGTHS";
+    public static final String EXTRA_TIMER_MESSAGES =
+            "com.android.deskclock.extra.TIMER_MESSAGES";
+
+    // int[] of timer ids: the result of SET_TIMER, and the timers to delete with DELETE_TIMERS.
+    // Only timers set with EXTRA_SKIP_UI can be deleted, the others belong to the user.
+    public static final String EXTRA_TIMER_IDS = "com.android.deskclock.extra.TIMER_IDS";
+    public static final String ACTION_DELETE_TIMERS =
+            "com.android.deskclock.action.DELETE_TIMERS";
+
     @Override
     protected void onCreate(Bundle icicle) {
         try {
@@ -68,6 +82,8 @@ public class HandleApiCalls extends Activity {
                     handleShowAlarms();
                 } else if (ACTION_SET_TIMER.equals(intent.getAction())) {
                     handleSetTimer(intent);
+                } else if (ACTION_DELETE_TIMERS.equals(intent.getAction())) {
+                    handleDeleteTimers(intent);
                 }
             }
         } finally {
@@ -156,49 +172,73 @@ public class HandleApiCalls extends Activity {
     }
 
     private void handleSetTimer(Intent intent) {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        // If no length is supplied , show the timer setup view
-        if (!intent.hasExtra(EXTRA_LENGTH)) {
+        final long[] lengths;
+        final String[] labels;
+        if (intent.hasExtra(EXTRA_TIMER_LENGTHS)) {
+            final int[] seconds = intent.getIntArrayExtra(EXTRA_TIMER_LENGTHS);
+            final String[] messages = intent.getStringArrayExtra(EXTRA_TIMER_MESSAGES);
+            final int count = seconds == null ? 0 : seconds.length;
+            lengths = new long[count];
+            labels = new String[count];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = 1000l * seconds[i];
+                labels[i] = (messages == null || i >= messages.length || messages[i] == null)
+                        ? "" : messages[i];
+            }
+        } else if (intent.hasExtra(EXTRA_LENGTH)) {
+            lengths = new long[] {1000l * intent.getIntExtra(EXTRA_LENGTH, 0)};
+            labels = new String[] {getMessageFromIntent(intent)};
+        } else {
+            // If no length is supplied , show the timer setup view
             startActivity(new Intent(this, DeskClock.class)
                   .putExtra(DeskClock.SELECT_TAB_INTENT_EXTRA, DeskClock.TIMER_TAB_INDEX)
                   .putExtra(TimerFragment.GOTO_SETUP_VIEW, true));
             return;
         }
 
-        final long length = 1000l * intent.getIntExtra(EXTRA_LENGTH, 0);
-        if (length < TIMER_MIN_LENGTH || length > TIMER_MAX_LENGTH) {
-            Log.i("Invalid timer length requested: " + length);
+        // Set all of the timers or none of them
+        if (lengths.length == 0) {
+            Log.i("No timer lengths requested");
             return;
         }
-        String label = getMessageFromIntent(intent);
-
-        TimerObj timer = null;
-        // Find an existing matching time
-        final ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
-        TimerObj.getTimersFromSharedPrefs(prefs, timers);
-        for (TimerObj t : timers) {
-            if (t.mSetupLength == length && (TextUtils.equals(label, t.mLabel))
-                    && t.mState == TimerObj.STATE_RESTART) {
-                timer = t;
-                break;
+        for (long length : lengths) {
+            if (length < TIMER_MIN_LENGTH || length > TIMER_MAX_LENGTH) {
+                Log.i("Invalid timer length requested: " + length);
+                return;
             }
         }
 
-        boolean skipUi = intent.getBooleanExtra(EXTRA_SKIP_UI, false);
-        if (timer == null) {
-            // Use a new timer
-            timer = new TimerObj(length, label);
-            // Timers set without presenting UI to the user will be deleted after use
-            timer.mDeleteAfterUse = skipUi;
+        // Unused timers that match a requested length and label are started instead of new ones
+        final List<TimerObj> unusedTimers = new ArrayList<TimerObj>(
+                TimerStore.getTimersInState(this, TimerObj.STATE_RESTART));
+
+        final boolean skipUi = intent.getBooleanExtra(EXTRA_SKIP_UI, false);
+        final long now = Utils.getTimeNow();
+        final List<TimerObj> timers = new ArrayList<TimerObj>(lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            TimerObj timer = removeMatchingTimer(unusedTimers, lengths[i], labels[i]);
+            if (timer == null) {
+                // Use a new timer
+                timer = new TimerObj(lengths[i], labels[i]);
+                // Timers set without presenting UI to the user will be deleted after use
+                timer.mDeleteAfterUse = skipUi;
+            }
+            timer.mState = TimerObj.STATE_RUNNING;
+            timer.mStartTime = now;
+            timers.add(timer);
         }
+        // One write for every timer
+        TimerStore.saveTimers(this, timers);
 
-        timer.mState = TimerObj.STATE_RUNNING;
-        timer.mStartTime = Utils.getTimeNow();
-        timer.writeToSharedPref(prefs);
+        final int[] timerIds = new int[timers.size()];
+        for (int i = 0; i < timerIds.length; i++) {
+            timerIds[i] = timers.get(i).mTimerId;
+        }
+        setResult(RESULT_OK, new Intent().putExtra(EXTRA_TIMER_IDS, timerIds));
 
-        // Tell TimerReceiver that the timer was started
+        // Tell TimerReceiver that timers were started, it schedules the next one to go off
         sendBroadcast(new Intent().setAction(Timers.START_TIMER)
-                .putExtra(Timers.TIMER_INTENT_EXTRA, timer.mTimerId));
+                .putExtra(Timers.TIMER_INTENT_EXTRA, timerIds[0]));
 
         if (skipUi) {
             Utils.showInUseNotifications(this);
@@ -208,6 +248,66 @@ public class HandleApiCalls extends Activity {
         }
     }
 
+    private static TimerObj removeMatchingTimer(List<TimerObj> timers, long length, String label) {
+        final Iterator<TimerObj> i = timers.iterator();
+        while (i.hasNext()) {
+            final TimerObj t = i.next();
+            if (t.mSetupLength == length && TextUtils.equals(label, t.mLabel)) {
+                i.remove();
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private void handleDeleteTimers(Intent intent) {
+        final int[] timerIds = intent.getIntArrayExtra(EXTRA_TIMER_IDS);
+        if (timerIds == null || timerIds.length == 0) {
+            Log.i("No timer ids to delete");
+            return;
+        }
+
+        final NotificationManager nm =
+                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        int deletedTimerId = TimerObj.INVALID_ID;
+        for (int timerId : timerIds) {
+            final TimerObj timer = TimerStore.getTimer(this, timerId);
+            if (timer == null) {
+                continue;
+            }
+            if (!timer.getDeleteAfterUse()) {
+                // Any app can send this action and timer ids are easy to guess, so it must not
+                // delete the timers the user set up in the app
+                Log.i("Not deleting timer " + timerId + ", it was not set without UI");
+                continue;
+            }
+            timer.mState = TimerObj.STATE_DELETED;
+            TimerStore.deleteTimer(this, timer);
+            // Times up notifications use the timer id
+            nm.cancel(timerId);
+            deletedTimerId = timerId;
+        }
+        if (deletedTimerId == TimerObj.INVALID_ID) {
+            return;
+        }
+
+        // Flag to tell DeskClock to re-sync with the timer store
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putBoolean(Timers.FROM_NOTIFICATION, true).apply();
+
+        // Tell TimerReceiver once, it stops the ringtone if no timer is left in times up and
+        // schedules the next timer to go off
+        sendBroadcast(new Intent().setAction(Timers.DELETE_TIMER)
+                .putExtra(Timers.TIMER_INTENT_EXTRA, deletedTimerId));
+
+        if (TimerStore.getTimersInState(this, TimerObj.STATE_RUNNING).isEmpty()
+                && TimerStore.getTimersInState(this, TimerObj.STATE_STOPPED).isEmpty()) {
+            sendBroadcast(new Intent().setAction(Timers.NOTIF_IN_USE_CANCEL));
+        } else {
+            Utils.showInUseNotifications(this);
+        }
+    }
+
     private void setupInstance(AlarmInstance instance, boolean skipUi) {
         instance = AlarmInstance.addInstance(this.getContentResolver(), instance);
         AlarmStateManager.registerInstance(this, instance, true);
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Partial wake lock held by a broadcast receiver while its work runs in the background.
+ * Each release records how long the lock was held per broadcast action, split into the time
+ * spent waiting for a background thread and the time spent working, and warns when the hold
+ * time goes over the budget set by {@code R.integer.config_receiver_wakelock_budget_millis}.
+ */
+public final class ReceiverWakeLock {
+    // Upper bounds of the hold time histogram buckets, the last bucket has no upper bound.
+    private static final long[] BUCKET_BOUNDS_MILLIS =
+            {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    // Hold time stats per action, sorted by action for the dump. Guarded by itself.
+    private static final TreeMap<String, ActionStats> sStats = new TreeMap<String, ActionStats>();
+
+    private final PowerManager.WakeLock mWakeLock;
+    private final String mAction;
+    private final long mBudget;
+    private final long mAcquireTime;
+    private long mWorkStartTime = -1;
+
+    /**
+     * Acquire a partial wake lock for the handling of a broadcast.
+     *
+     * @param context application context
+     * @param action of the broadcast, used to group the stats
+     * @return acquired wake lock, to be released once the work is done
+     */
+    public static ReceiverWakeLock acquire(Context context, String action) {
+        ReceiverWakeLock wakeLock = new ReceiverWakeLock(context, action);
+        wakeLock.mWakeLock.acquire();
+        return wakeLock;
+    }
+
+    private ReceiverWakeLock(Context context, String action) {
+        mWakeLock = AlarmAlertWakeLock.createPartialWakeLock(context);
+        mAction = String.valueOf(action);
+        mBudget = context.getResources().getInteger(
+                R.integer.config_receiver_wakelock_budget_millis);
+        mAcquireTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Mark the end of the wait for a background thread and the start of the work.
+     */
+    public void onWorkStarted() {
+        mWorkStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Release the wake lock and record how long it was held.
+     */
+    public void release() {
+        mWakeLock.release();
+
+        final long releaseTime = SystemClock.elapsedRealtime();
+        final long workStartTime = mWorkStartTime < 0 ? mAcquireTime : mWorkStartTime;
+        final long hold = releaseTime - mAcquireTime;
+        final long wait = workStartTime - mAcquireTime;
+        final long work = releaseTime - workStartTime;
+        final boolean overBudget = mBudget > 0 && hold > mBudget;
+
+        synchronized (sStats) {
+            ActionStats stats = sStats.get(mAction);
+            if (stats == null) {
+                stats = new ActionStats();
+                sStats.put(mAction, stats);
+            }
+            stats.add(hold, wait, work, overBudget);
+        }
+
+        if (overBudget) {
+            Log.w("Wake lock for " + mAction + " held " + hold + "ms (wait " + wait +
+                    "ms, work " + work + "ms), over the " + mBudget + "ms budget");
+        } else if (Log.LOGV) {
+            Log.v("Wake lock for " + mAction + " held " + hold + "ms (wait " + wait +
+                    "ms, work " + work + "ms)");
+        }
+    }
+
+    /**
+     * Print the hold time stats and histogram of every action.
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Receiver wake locks:");
+
+        final StringBuilder header = new StringBuilder(prefix).append("    hold ms:");
+        for (long bound : BUCKET_BOUNDS_MILLIS) {
+            header.append(" <").append(bound);
+        }
+        header.append(" >=").append(BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1]);
+        writer.println(header);
+
+        synchronized (sStats) {
+            for (Map.Entry<String, ActionStats> entry : sStats.entrySet()) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.println(entry.getKey());
+                entry.getValue().dump(prefix + "    ", writer);
+            }
+        }
+    }
+
+    private static final class ActionStats {
+        private final int[] mHistogram = new int[BUCKET_BOUNDS_MILLIS.length + 1];
+        private int mCount;
+        private int mOverBudgetCount;
+        private long mTotalHold;
+        private long mMaxHold;
+        private long mTotalWait;
+        private long mMaxWait;
+        private long mTotalWork;
+        private long mMaxWork;
+
+        void add(long hold, long wait, long work, boolean overBudget) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && hold >= BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            mHistogram[bucket]++;
+
+            mCount++;
+            if (overBudget) {
+                mOverBudgetCount++;
+            }
+            mTotalHold += hold;
+            mMaxHold = Math.max(mMaxHold, hold);
+            mTotalWait += wait;
+            mMaxWait = Math.max(mMaxWait, wait);
+            mTotalWork += work;
+            mMaxWork = Math.max(mMaxWork, work);
+        }
+
+        void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix);
+            writer.println("count=" + mCount + " overBudget=" + mOverBudgetCount +
+                    " hold(avg/max)=" + mTotalHold / mCount + "/" + mMaxHold +
+                    "ms wait(avg/max)=" + mTotalWait / mCount + "/" + mMaxWait +
+                    "ms work(avg/max)=" + mTotalWork / mCount + "/" + mMaxWork + "ms");
+
+            final StringBuilder histogram = new StringBuilder(prefix).append("histogram:");
+            for (int count : mHistogram) {
+                histogram.append(' ').append(count);
+            }
+            writer.println(histogram);
+        }
+    }
+}
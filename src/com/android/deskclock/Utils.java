@@ -198,12 +198,6 @@ public class Utils {
         editor.remove (Stopwatches.PREF_START_TIME);
         editor.remove (Stopwatches.PREF_ACCUM_TIME);
         editor.remove (Stopwatches.PREF_STATE);
-        int lapNum = prefs.getInt(Stopwatches.PREF_LAP_NUM, Stopwatches.STOPWATCH_RESET);
-        for (int i = 0; i < lapNum; i++) {
-            String key = Stopwatches.PREF_LAP_TIME + Integer.toString(i);
-            editor.remove(key);
-        }
-        editor.remove(Stopwatches.PREF_LAP_NUM);
         editor.apply();
     }
 
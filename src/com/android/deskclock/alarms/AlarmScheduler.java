@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.deskclock.alarms;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+import com.android.deskclock.Log;
+import com.android.deskclock.Utils;
+import com.android.deskclock.provider.AlarmInstance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps every pending alarm instance state change in a single in-process min-heap and arms
+ * exactly one {@link AlarmManager} wakeup for the earliest of them. When the wakeup fires,
+ * {@link AlarmStateManager} polls the due state changes with {@link #pollDueStateChanges},
+ * applies each of them on the lane of its instance and the scheduler re-arms itself for the
+ * next pending change once they are all applied.
+ *
+ * Each instance has at most one pending state change, so scheduling a new change for an
+ * instance replaces the previous one. If the process was killed, the heap is rebuilt from the
+ * persisted instance states the first time it is needed.
+ */
+final class AlarmScheduler {
+    // Intent action sent by the single scheduler wakeup.
+    static final String WAKEUP_ACTION = "scheduler_wakeup";
+
+    /**
+     * A pending state change for an alarm instance.
+     */
+    static final class StateChange implements Comparable<StateChange> {
+        final long instanceId;
+        final long time;
+        final int state;
+
+        StateChange(long instanceId, long time, int state) {
+            this.instanceId = instanceId;
+            this.time = time;
+            this.state = state;
+        }
+
+        /**
+         * @return true if other changes to the same state at the same time
+         */
+        boolean isSameChange(StateChange other) {
+            return other != null && time == other.time && state == other.state;
+        }
+
+        @Override
+        public int compareTo(StateChange other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return instanceId < other.instanceId ? -1 : (instanceId == other.instanceId ? 0 : 1);
+        }
+
+        @Override
+        public String toString() {
+            return "StateChange{" +
+                    "instanceId=" + instanceId +
+                    ", time=" + time +
+                    ", state=" + state +
+                    '}';
+        }
+    }
+
+    // Min-heap of state changes. Replaced or canceled changes are left in the heap and
+    // skipped when they reach the top, so updates never need a linear removal.
+    private static final PriorityQueue<StateChange> sQueue = new PriorityQueue<StateChange>();
+
+    // The live state change of each instance, keyed by instance id.
+    private static final HashMap<Long, StateChange> sPending = new HashMap<Long, StateChange>();
+
+    // Due state changes handed out by pollDueStateChanges and not claimed yet, keyed by
+    // instance id. Scheduling or canceling a change for the instance makes them stale.
+    private static final HashMap<Long, StateChange> sPolled = new HashMap<Long, StateChange>();
+
+    // True once the heap reflects the persisted instances of this process.
+    private static boolean sLoaded = false;
+
+    // Time the AlarmManager wakeup is currently armed for, or -1 if none is known.
+    private static long sArmedTime = -1;
+
+    // While greater than zero, re-arming is deferred until the outermost batch ends.
+    private static int sBatchDepth = 0;
+
+    /**
+     * Schedule a state change for an instance, replacing any previously scheduled one.
+     *
+     * @param context application context
+     * @param instance to change state for
+     * @param timeInMillis to trigger state change
+     * @param state to change to
+     */
+    static synchronized void schedule(Context context, AlarmInstance instance, long timeInMillis,
+            int state) {
+        ensureLoaded(context);
+        put(new StateChange(instance.mId, timeInMillis, state));
+        rearm(context);
+    }
+
+    /**
+     * Cancel the pending state change of an instance, if any.
+     *
+     * @param context application context
+     * @param instance to cancel state change for
+     */
+    static synchronized void cancel(Context context, AlarmInstance instance) {
+        ensureLoaded(context);
+        sPolled.remove(instance.mId);
+        if (sPending.remove(instance.mId) != null) {
+            rearm(context);
+        }
+    }
+
+    /**
+     * Return the pending state change of an instance.
+     *
+     * @param context application context
+     * @param instanceId of the instance
+     * @return pending state change or null if none is scheduled
+     */
+    static synchronized StateChange getStateChange(Context context, long instanceId) {
+        ensureLoaded(context);
+        return sPending.get(instanceId);
+    }
+
+    /**
+     * Remove and return all state changes that are due. Re-arming is deferred until
+     * {@link #endBatch} is called, so the caller can apply the changes first.
+     *
+     * @param context application context
+     * @param now current time in millis
+     * @return due state changes, ordered by time
+     */
+    static synchronized List<StateChange> pollDueStateChanges(Context context, long now) {
+        // The wakeup that got us here is not armed anymore
+        sArmedTime = -1;
+        sBatchDepth++;
+        ensureLoaded(context);
+
+        List<StateChange> result = new ArrayList<StateChange>();
+        StateChange change;
+        while ((change = peekLive()) != null && change.time <= now) {
+            sQueue.poll();
+            sPending.remove(change.instanceId);
+            sPolled.put(change.instanceId, change);
+            result.add(change);
+        }
+        return result;
+    }
+
+    /**
+     * Claim a state change returned by {@link #pollDueStateChanges} before applying it. The
+     * changes are applied on the lanes of their instances, so another change of the instance
+     * may have been made in the meantime.
+     *
+     * @param change polled state change
+     * @return true if the change should be applied, false if a state change was scheduled or
+     *         canceled for the instance since it was polled
+     */
+    static synchronized boolean claimStateChange(StateChange change) {
+        return sPolled.remove(change.instanceId) == change;
+    }
+
+    /**
+     * Defer re-arming the wakeup until the matching {@link #endBatch} call. This is used when
+     * a lot of state changes are scheduled at once.
+     */
+    static synchronized void beginBatch() {
+        sBatchDepth++;
+    }
+
+    /**
+     * End a batch started with {@link #beginBatch} or {@link #pollDueStateChanges} and re-arm
+     * the wakeup for the earliest pending state change.
+     *
+     * @param context application context
+     */
+    static synchronized void endBatch(Context context) {
+        if (sBatchDepth > 0) {
+            sBatchDepth--;
+        }
+        rearm(context);
+    }
+
+    private static void put(StateChange change) {
+        sPolled.remove(change.instanceId);
+        sPending.put(change.instanceId, change);
+        sQueue.add(change);
+
+        // Don't let replaced entries pile up in the heap
+        if (sQueue.size() > 2 * sPending.size() + 16) {
+            sQueue.clear();
+            sQueue.addAll(sPending.values());
+        }
+    }
+
+    private static StateChange peekLive() {
+        StateChange change;
+        while ((change = sQueue.peek()) != null && sPending.get(change.instanceId) != change) {
+            sQueue.poll();
+        }
+        return change;
+    }
+
+    /**
+     * Return the state change that follows the current state of an instance. This mirrors
+     * the state change scheduled by the state setters in {@link AlarmStateManager}.
+     *
+     * @param context application context
+     * @param instance to get the next state change for
+     * @return next state change or null if the instance doesn't change state on its own
+     */
+    static StateChange getNextStateChange(Context context, AlarmInstance instance) {
+        long time;
+        int state;
+        switch (instance.mAlarmState) {
+            case AlarmInstance.SILENT_STATE:
+                time = instance.getLowNotificationTimeInMillis();
+                state = AlarmInstance.LOW_NOTIFICATION_STATE;
+                break;
+            case AlarmInstance.LOW_NOTIFICATION_STATE:
+            case AlarmInstance.HIDE_NOTIFICATION_STATE:
+                time = instance.getHighNotificationTimeInMillis();
+                state = AlarmInstance.HIGH_NOTIFICATION_STATE;
+                break;
+            case AlarmInstance.HIGH_NOTIFICATION_STATE:
+            case AlarmInstance.SNOOZE_STATE:
+                time = instance.getAlarmTimeInMillis();
+                state = AlarmInstance.FIRED_STATE;
+                break;
+            case AlarmInstance.FIRED_STATE:
+                time = instance.getTimeoutInMillis(context);
+                state = AlarmInstance.MISSED_STATE;
+                break;
+            case AlarmInstance.MISSED_STATE:
+                time = instance.getMissedTimeToLiveInMillis();
+                state = AlarmInstance.DISMISSED_STATE;
+                break;
+            default:
+                return null;
+        }
+        return time < 0 ? null : new StateChange(instance.mId, time, state);
+    }
+
+    /**
+     * Rebuild the heap from the persisted instances, if this process has not done so yet.
+     */
+    private static void ensureLoaded(Context context) {
+        if (sLoaded) {
+            return;
+        }
+        sLoaded = true;
+
+        for (AlarmInstance instance : AlarmInstance.getInstances(context.getContentResolver(),
+                null)) {
+            StateChange change = getNextStateChange(context, instance);
+            if (change != null) {
+                put(change);
+            }
+        }
+        Log.v("Loaded " + sPending.size() + " pending alarm state changes");
+    }
+
+    private static void rearm(Context context) {
+        if (sBatchDepth > 0) {
+            return;
+        }
+
+        StateChange next = peekLive();
+        long nextTime = next == null ? -1 : next.time;
+        if (nextTime == sArmedTime) {
+            // Wakeup is already armed for the right time
+            return;
+        }
+
+        Intent intent = new Intent(context, AlarmStateManager.class);
+        intent.setAction(WAKEUP_ACTION);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (next == null) {
+            Log.v("No pending alarm state changes, canceling wakeup");
+            am.cancel(pendingIntent);
+        } else {
+            Log.v("Arming wakeup for " + next + " (" + sPending.size() + " pending)");
+            if (Utils.isKitKatOrLater()) {
+                am.setExact(AlarmManager.RTC_WAKEUP, nextTime, pendingIntent);
+            } else {
+                am.set(AlarmManager.RTC_WAKEUP, nextTime, pendingIntent);
+            }
+        }
+        sArmedTime = nextTime;
+    }
+
+    /**
+     * Forget every state change, so the next use reloads them from the persisted instances.
+     * This does not touch the armed wakeup.
+     */
+    static synchronized void reset() {
+        sQueue.clear();
+        sPending.clear();
+        sPolled.clear();
+        sLoaded = false;
+    }
+
+    private AlarmScheduler() {}
+}
@@ -15,32 +15,36 @@
  */
 package com.android.deskclock.alarms;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
-import android.os.PowerManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
+import android.text.format.DateUtils;
 import android.widget.Toast;
 
-import com.android.deskclock.AlarmAlertWakeLock;
 import com.android.deskclock.AlarmClockFragment;
 import com.android.deskclock.AlarmUtils;
 import com.android.deskclock.AsyncHandler;
 import com.android.deskclock.DeskClock;
 import com.android.deskclock.Log;
 import com.android.deskclock.R;
+import com.android.deskclock.ReceiverWakeLock;
 import com.android.deskclock.SettingsActivity;
-import com.android.deskclock.Utils;
 import com.android.deskclock.provider.Alarm;
 import com.android.deskclock.provider.AlarmInstance;
+import com.android.deskclock.provider.ClockContract;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class handles all the state changes for alarm instances. You need to
@@ -108,9 +112,6 @@ public final class AlarmStateManager extends BroadcastReceiver {
     // Extra key to set the global broadcast id.
     private static final String ALARM_GLOBAL_ID_EXTRA = "intent.extra.alarm.global.id";
 
-    // Intent category tag used when schedule state change intents in alarm manager.
-    public static final String ALARM_MANAGER_TAG = "ALARM_MANAGER";
-
     // Buffer time in seconds to fire alarm instead of marking it missed.
     public static final int ALARM_FIRE_BUFFER = 15;
 
@@ -132,55 +133,82 @@ public final class AlarmStateManager extends BroadcastReceiver {
      * @param context application context
      */
     public static void updateNextAlarm(Context context) {
-        AlarmInstance nextAlarm = null;
-        ContentResolver cr = context.getContentResolver();
-        String activeAlarmQuery = AlarmInstance.ALARM_STATE + "<" + AlarmInstance.FIRED_STATE;
-        for (AlarmInstance instance : AlarmInstance.getInstances(cr, activeAlarmQuery)) {
-            if (nextAlarm == null || instance.getAlarmTime().before(nextAlarm.getAlarmTime())) {
-                nextAlarm = instance;
-            }
-        }
+        AlarmInstance nextAlarm = AlarmInstance.getNextInstance(context.getContentResolver());
         AlarmNotifications.broadcastNextAlarm(context, nextAlarm);
     }
 
     /**
      * Used by dismissed and missed states, to update parent alarm. This will either
-     * disable, delete or reschedule parent alarm.
+     * disable, delete or reschedule parent alarm. The database changes are added to ops, so
+     * the caller can apply them in one batch with its own changes to the instance.
      *
      * @param context application context
      * @param instance to update parent for
+     * @param ops to add the parent alarm changes to
+     * @return new instance of a repeating parent alarm, which must be handed to
+     *         {@link #applyInstanceChanges} together with ops, or null if there is none
      */
-    private static void updateParentAlarm(Context context, AlarmInstance instance) {
+    private static AlarmInstance updateParentAlarm(Context context, AlarmInstance instance,
+            ArrayList<ContentProviderOperation> ops) {
         ContentResolver cr = context.getContentResolver();
         Alarm alarm = Alarm.getAlarm(cr, instance.mAlarmId);
         if (alarm == null) {
             Log.e("Parent has been deleted with instance: " + instance.toString());
-            return;
+            return null;
         }
 
         if (!alarm.daysOfWeek.isRepeating()) {
             if (alarm.deleteAfterUse) {
                 Log.i("Deleting parent alarm: " + alarm.id);
-                Alarm.deleteAlarm(cr, alarm.id);
+                ops.add(Alarm.newDeleteOperation(alarm.id));
             } else {
                 Log.i("Disabling parent alarm: " + alarm.id);
                 alarm.enabled = false;
-                Alarm.updateAlarm(cr, alarm);
+                ops.add(Alarm.newUpdateOperation(alarm));
             }
+            return null;
         } else {
             // This is a optimization for really old alarm instances. This prevent us
             // from scheduling and dismissing alarms up to current time.
-            Calendar currentTime = Calendar.getInstance();
-            Calendar alarmTime = instance.getAlarmTime();
-            if (currentTime.after(alarmTime)) {
-                alarmTime = currentTime;
+            Calendar alarmTime = Calendar.getInstance();
+            long alarmTimeInMillis = instance.getAlarmTimeInMillis();
+            if (alarmTime.getTimeInMillis() <= alarmTimeInMillis) {
+                alarmTime.setTimeInMillis(alarmTimeInMillis);
             }
             AlarmInstance nextRepeatedInstance = alarm.createInstanceAfter(alarmTime);
             Log.i("Creating new instance for repeating alarm " + alarm.id + " at "  +
-                    AlarmUtils.getFormattedTime(context, nextRepeatedInstance.getAlarmTime()));
-            AlarmInstance.addInstance(cr, nextRepeatedInstance);
-            registerInstance(context, nextRepeatedInstance, true);
+                    AlarmUtils.getFormattedTime(context,
+                            nextRepeatedInstance.getAlarmTimeInMillis()));
+            ops.add(AlarmInstance.newAddOperation(cr, nextRepeatedInstance));
+            return nextRepeatedInstance;
+        }
+    }
+
+    /**
+     * Apply instance and parent alarm changes in a single provider transaction, then register
+     * the new instance of the parent alarm if there is one.
+     *
+     * @param context application context
+     * @param ops changes to apply
+     * @param nextInstance returned by {@link #updateParentAlarm}, may be null
+     */
+    private static void applyInstanceChanges(Context context,
+            ArrayList<ContentProviderOperation> ops, AlarmInstance nextInstance) {
+        ContentProviderResult[] results = ClockContract.applyBatch(context.getContentResolver(),
+                ops);
+        if (results == null || nextInstance == null) {
+            return;
+        }
+
+        if (nextInstance.mId == AlarmInstance.INVALID_ID) {
+            // The new instance is the only row inserted by the batch
+            for (ContentProviderResult result : results) {
+                if (result.uri != null) {
+                    nextInstance.mId = AlarmInstance.getId(result.uri);
+                }
+            }
         }
+        registerInstance(context, nextInstance, false);
     }
 
     /**
@@ -205,50 +233,34 @@ public final class AlarmStateManager extends BroadcastReceiver {
     }
 
     /**
-     * Schedule alarm instance state changes with {@link AlarmManager}.
+     * Schedule alarm instance state changes with the {@link AlarmScheduler}.
      *
      * @param context application context
-     * @param time to trigger state change
+     * @param timeInMillis to trigger state change
      * @param instance to change state to
      * @param newState to change to
      */
-    private static void scheduleInstanceStateChange(Context context, Calendar time,
+    private static void scheduleInstanceStateChange(Context context, long timeInMillis,
             AlarmInstance instance, int newState) {
-        long timeInMillis = time.getTimeInMillis();
-        Log.v("Scheduling state change " + newState + " to instance " + instance.mId +
-                " at " + AlarmUtils.getFormattedTime(context, time) + " (" + timeInMillis + ")");
-        Intent stateChangeIntent = createStateChangeIntent(context, ALARM_MANAGER_TAG, instance,
-                newState);
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, instance.hashCode(),
-                stateChangeIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        if (Utils.isKitKatOrLater()) {
-            am.setExact(AlarmManager.RTC_WAKEUP, timeInMillis, pendingIntent);
-        } else {
-            am.set(AlarmManager.RTC_WAKEUP, timeInMillis, pendingIntent);
+        if (Log.LOGV) {
+            Log.v("Scheduling state change " + newState + " to instance " + instance.mId +
+                    " at " + AlarmUtils.getFormattedTime(context, timeInMillis) + " (" +
+                    timeInMillis + ")");
         }
+        AlarmScheduler.schedule(context, instance, timeInMillis, newState);
     }
 
     /**
-     * Cancel all {@link AlarmManager} timers for instance.
+     * Cancel all scheduled state changes for instance.
      *
      * @param context application context
-     * @param instance to disable all {@link AlarmManager} timers
+     * @param instance to disable all scheduled state changes
      */
     private static void cancelScheduledInstance(Context context, AlarmInstance instance) {
         Log.v("Canceling instance " + instance.mId + " timers");
-
-        // Create a PendingIntent that will match any one set for this instance
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, instance.hashCode(),
-                createStateChangeIntent(context, ALARM_MANAGER_TAG, instance, null),
-                PendingIntent.FLAG_UPDATE_CURRENT);
-
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(pendingIntent);
+        AlarmScheduler.cancel(context, instance);
     }
 
-
     /**
      * This will set the alarm instance to the SILENT_STATE and update
      * the application notifications and schedule any state changes that need
@@ -267,7 +279,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.clearNotification(context, instance);
-        scheduleInstanceStateChange(context, instance.getLowNotificationTime(),
+        scheduleInstanceStateChange(context, instance.getLowNotificationTimeInMillis(),
                 instance, AlarmInstance.LOW_NOTIFICATION_STATE);
     }
 
@@ -289,7 +301,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showLowPriorityNotification(context, instance);
-        scheduleInstanceStateChange(context, instance.getHighNotificationTime(),
+        scheduleInstanceStateChange(context, instance.getHighNotificationTimeInMillis(),
                 instance, AlarmInstance.HIGH_NOTIFICATION_STATE);
     }
 
@@ -311,7 +323,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.clearNotification(context, instance);
-        scheduleInstanceStateChange(context, instance.getHighNotificationTime(),
+        scheduleInstanceStateChange(context, instance.getHighNotificationTimeInMillis(),
                 instance, AlarmInstance.HIGH_NOTIFICATION_STATE);
     }
 
@@ -333,7 +345,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showHighPriorityNotification(context, instance);
-        scheduleInstanceStateChange(context, instance.getAlarmTime(),
+        scheduleInstanceStateChange(context, instance.getAlarmTimeInMillis(),
                 instance, AlarmInstance.FIRED_STATE);
     }
 
@@ -356,8 +368,8 @@ public final class AlarmStateManager extends BroadcastReceiver {
         // Start the alarm and schedule timeout timer for it
         AlarmService.startAlarm(context, instance);
 
-        Calendar timeout = instance.getTimeout(context);
-        if (timeout != null) {
+        long timeout = instance.getTimeoutInMillis(context);
+        if (timeout >= 0) {
             scheduleInstanceStateChange(context, timeout, instance, AlarmInstance.MISSED_STATE);
         }
 
@@ -373,7 +385,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
      * @param context application context
      * @param instance to set state to
      */
-    public static void setSnoozeState(Context context, AlarmInstance instance) {
+    public static void setSnoozeState(final Context context, AlarmInstance instance) {
         // Stop alarm if this instance is firing it
         AlarmService.stopAlarm(context, instance);
 
@@ -393,13 +405,19 @@ public final class AlarmStateManager extends BroadcastReceiver {
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showSnoozeNotification(context, instance);
-        scheduleInstanceStateChange(context, instance.getAlarmTime(),
+        scheduleInstanceStateChange(context, instance.getAlarmTimeInMillis(),
                 instance, AlarmInstance.FIRED_STATE);
 
         // Display the snooze minutes in a toast.
-        String displayTime = String.format(context.getResources().getQuantityText
+        // This may run on a background thread without a looper, so show it from the main one.
+        final String displayTime = String.format(context.getResources().getQuantityText
                 (R.plurals.alarm_alert_snooze_set, snoozeMinutes).toString(), snoozeMinutes);
-        Toast.makeText(context, displayTime, Toast.LENGTH_LONG).show();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, displayTime, Toast.LENGTH_LONG).show();
+            }
+        });
 
         // Instance time changed, so find next alarm that will fire and notify system
         updateNextAlarm(context);
@@ -420,18 +438,20 @@ public final class AlarmStateManager extends BroadcastReceiver {
         AlarmService.stopAlarm(context, instance);
 
         // Check parent if it needs to reschedule, disable or delete itself
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        AlarmInstance nextInstance = null;
         if (instance.mAlarmId != null) {
-            updateParentAlarm(context, instance);
+            nextInstance = updateParentAlarm(context, instance, ops);
         }
 
-        // Update alarm state
-        ContentResolver contentResolver = context.getContentResolver();
+        // Update alarm state along with the parent alarm
         instance.mAlarmState = AlarmInstance.MISSED_STATE;
-        AlarmInstance.updateInstance(contentResolver, instance);
+        ops.add(AlarmInstance.newUpdateOperation(instance));
+        applyInstanceChanges(context, ops, nextInstance);
 
         // Setup instance notification and scheduling timers
         AlarmNotifications.showMissedNotification(context, instance);
-        scheduleInstanceStateChange(context, instance.getMissedTimeToLive(),
+        scheduleInstanceStateChange(context, instance.getMissedTimeToLiveInMillis(),
                 instance, AlarmInstance.DISMISSED_STATE);
 
         // Instance is not valid anymore, so find next alarm that will fire and notify system
@@ -454,12 +474,17 @@ public final class AlarmStateManager extends BroadcastReceiver {
         unregisterInstance(context, instance);
 
         // Check parent if it needs to reschedule, disable or delete itself
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        AlarmInstance nextInstance = null;
         if (instance.mAlarmId != null) {
-            updateParentAlarm(context, instance);
+            nextInstance = updateParentAlarm(context, instance, ops);
         }
 
-        // Delete instance as it is not needed anymore
-        AlarmInstance.deleteInstance(context.getContentResolver(), instance.mId);
+        // Delete instance as it is not needed anymore, along with the parent alarm changes
+        if (instance.mId != AlarmInstance.INVALID_ID) {
+            ops.add(AlarmInstance.newDeleteOperation(instance.mId));
+        }
+        applyInstanceChanges(context, ops, nextInstance);
 
         // Instance is not valid anymore, so find next alarm that will fire and notify system
         updateNextAlarm(context);
@@ -504,12 +529,7 @@ public final class AlarmStateManager extends BroadcastReceiver {
      */
     public static void registerInstance(Context context, AlarmInstance instance,
             boolean updateNextAlarm) {
-        Calendar currentTime = Calendar.getInstance();
-        Calendar alarmTime = instance.getAlarmTime();
-        Calendar timeoutTime = instance.getTimeout(context);
-        Calendar lowNotificationTime = instance.getLowNotificationTime();
-        Calendar highNotificationTime = instance.getHighNotificationTime();
-        Calendar missedTTL = instance.getMissedTimeToLive();
+        long currentTime = System.currentTimeMillis();
 
         // Handle special use cases here
         if (instance.mAlarmState == AlarmInstance.DISMISSED_STATE) {
@@ -519,13 +539,14 @@ public final class AlarmStateManager extends BroadcastReceiver {
             return;
         } else if (instance.mAlarmState == AlarmInstance.FIRED_STATE) {
             // Keep alarm firing, unless it should be timed out
-            boolean hasTimeout = timeoutTime != null && currentTime.after(timeoutTime);
+            long timeoutTime = instance.getTimeoutInMillis(context);
+            boolean hasTimeout = timeoutTime >= 0 && currentTime > timeoutTime;
             if (!hasTimeout) {
                 setFiredState(context, instance);
                 return;
             }
         } else if (instance.mAlarmState == AlarmInstance.MISSED_STATE) {
-            if (currentTime.before(alarmTime)) {
+            if (currentTime < instance.getAlarmTimeInMillis()) {
                 if (instance.mAlarmId == null) {
                     // This instance parent got deleted (ie. deleteAfterUse), so
                     // we should not re-activate it.-
@@ -547,44 +568,105 @@ public final class AlarmStateManager extends BroadcastReceiver {
         }
 
         // Fix states that are time sensitive
-        if (currentTime.after(missedTTL)) {
-            // Alarm is so old, just dismiss it
-            setDismissState(context, instance);
-        } else if (currentTime.after(alarmTime)) {
+        switch (getTimeSensitiveState(instance, currentTime)) {
+            case AlarmInstance.DISMISSED_STATE:
+                // Alarm is so old, just dismiss it
+                setDismissState(context, instance);
+                break;
+            case AlarmInstance.FIRED_STATE:
+                setFiredState(context, instance);
+                break;
+            case AlarmInstance.MISSED_STATE:
+                setMissedState(context, instance);
+                break;
+            case AlarmInstance.SNOOZE_STATE:
+                // We only want to display snooze notification and not update the time,
+                // so handle showing the notification directly
+                AlarmNotifications.showSnoozeNotification(context, instance);
+                scheduleInstanceStateChange(context, instance.getAlarmTimeInMillis(),
+                        instance, AlarmInstance.FIRED_STATE);
+                break;
+            case AlarmInstance.HIGH_NOTIFICATION_STATE:
+                setHighNotificationState(context, instance);
+                break;
+            case AlarmInstance.HIDE_NOTIFICATION_STATE:
+                setHideNotificationState(context, instance);
+                break;
+            case AlarmInstance.LOW_NOTIFICATION_STATE:
+                setLowNotificationState(context, instance);
+                break;
+            default:
+                // Alarm is still active, so initialize as a silent alarm
+                setSilentState(context, instance);
+                break;
+        }
+
+        // The caller prefers to handle updateNextAlarm for optimization
+        if (updateNextAlarm) {
+            updateNextAlarm(context);
+        }
+    }
+
+    /**
+     * Return the state {@link #registerInstance} would put the instance in, without changing
+     * anything.
+     *
+     * @param context application context
+     * @param instance to check
+     * @param currentTime to check against
+     * @return state the instance should be in
+     */
+    static int getRegisteredState(Context context, AlarmInstance instance,
+            long currentTime) {
+        if (instance.mAlarmState == AlarmInstance.DISMISSED_STATE) {
+            return AlarmInstance.DISMISSED_STATE;
+        } else if (instance.mAlarmState == AlarmInstance.FIRED_STATE) {
+            long timeoutTime = instance.getTimeoutInMillis(context);
+            if (timeoutTime < 0 || currentTime <= timeoutTime) {
+                return AlarmInstance.FIRED_STATE;
+            }
+        } else if (instance.mAlarmState == AlarmInstance.MISSED_STATE) {
+            if (currentTime < instance.getAlarmTimeInMillis() && instance.mAlarmId == null) {
+                return AlarmInstance.DISMISSED_STATE;
+            }
+        }
+        return getTimeSensitiveState(instance, currentTime);
+    }
+
+    /**
+     * Return the state an instance should be in based on its alarm time. This covers
+     * everything but the special cases handled at the top of {@link #registerInstance}.
+     *
+     * @param instance to check
+     * @param currentTime to check against
+     * @return state the instance should be in
+     */
+    private static int getTimeSensitiveState(AlarmInstance instance, long currentTime) {
+        long alarmTime = instance.getAlarmTimeInMillis();
+        if (currentTime > instance.getMissedTimeToLiveInMillis()) {
+            return AlarmInstance.DISMISSED_STATE;
+        } else if (currentTime > alarmTime) {
             // There is a chance that the TIME_SET occurred right when the alarm should go off, so
             // we need to add a check to see if we should fire the alarm instead of marking it
             // missed.
-            Calendar alarmBuffer = Calendar.getInstance();
-            alarmBuffer.setTime(alarmTime.getTime());
-            alarmBuffer.add(Calendar.SECOND, ALARM_FIRE_BUFFER);
-            if (currentTime.before(alarmBuffer)) {
-                setFiredState(context, instance);
+            if (currentTime < alarmTime + ALARM_FIRE_BUFFER * DateUtils.SECOND_IN_MILLIS) {
+                return AlarmInstance.FIRED_STATE;
             } else {
-                setMissedState(context, instance);
+                return AlarmInstance.MISSED_STATE;
             }
         } else if (instance.mAlarmState == AlarmInstance.SNOOZE_STATE) {
-            // We only want to display snooze notification and not update the time,
-            // so handle showing the notification directly
-            AlarmNotifications.showSnoozeNotification(context, instance);
-            scheduleInstanceStateChange(context, instance.getAlarmTime(),
-                    instance, AlarmInstance.FIRED_STATE);
-        } else if (currentTime.after(highNotificationTime)) {
-            setHighNotificationState(context, instance);
-        } else if (currentTime.after(lowNotificationTime)) {
+            return AlarmInstance.SNOOZE_STATE;
+        } else if (currentTime > instance.getHighNotificationTimeInMillis()) {
+            return AlarmInstance.HIGH_NOTIFICATION_STATE;
+        } else if (currentTime > instance.getLowNotificationTimeInMillis()) {
             // Only show low notification if it wasn't hidden in the past
             if (instance.mAlarmState == AlarmInstance.HIDE_NOTIFICATION_STATE) {
-                setHideNotificationState(context, instance);
+                return AlarmInstance.HIDE_NOTIFICATION_STATE;
             } else {
-                setLowNotificationState(context, instance);
+                return AlarmInstance.LOW_NOTIFICATION_STATE;
             }
         } else {
-          // Alarm is still active, so initialize as a silent alarm
-          setSilentState(context, instance);
-        }
-
-        // The caller prefers to handle updateNextAlarm for optimization
-        if (updateNextAlarm) {
-            updateNextAlarm(context);
+            return AlarmInstance.SILENT_STATE;
         }
     }
 
@@ -598,9 +680,15 @@ public final class AlarmStateManager extends BroadcastReceiver {
     public static void deleteAllInstances(Context context, long alarmId) {
         ContentResolver cr = context.getContentResolver();
         List<AlarmInstance> instances = AlarmInstance.getInstancesByAlarmId(cr, alarmId);
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(instances.size());
         for (AlarmInstance instance : instances) {
             unregisterInstance(context, instance);
-            AlarmInstance.deleteInstance(context.getContentResolver(), instance.mId);
+            ops.add(AlarmInstance.newDeleteOperation(instance.mId));
+        }
+        if (!ops.isEmpty()) {
+            // Delete all instances in a single transaction
+            ClockContract.applyBatch(cr, ops);
         }
         updateNextAlarm(context);
     }
@@ -608,16 +696,132 @@ public final class AlarmStateManager extends BroadcastReceiver {
     /**
      * Fix and update all alarm instance when a time change event occurs.
      *
+     * In incremental mode only the instances whose state or next state change actually moved
+     * are touched. Instances that stay in their persisted state only get their pending state
+     * change rescheduled, without rewriting the database or reposting their notifications.
+     * Use the full mode when notifications may have been lost (ie. after a boot) or need to
+     * be rebuilt (ie. after a locale change).
+     *
+     * The stored trigger times are rewritten in a single batch on the global lane of
+     * {@link AsyncHandler}, so no instance changes while they are computed. Each instance is
+     * then fixed on its own keyed lane, so the state changes of the other instances don't wait
+     * for the whole fix.
+     *
      * @param context application context
+     * @param incremental true to only update instances that need it, false to re-register all
+     * @param done run on a background thread once every instance is fixed
      */
-    public static void fixAlarmInstances(Context context) {
-        // Register all instances after major time changes or when phone restarts
-        // TODO: Refactor this code to not use the overloaded registerInstance method.
-        ContentResolver contentResolver = context.getContentResolver();
-        for (AlarmInstance instance : AlarmInstance.getInstances(contentResolver, null)) {
-            AlarmStateManager.registerInstance(context, instance, false);
+    public static void fixAlarmInstances(final Context context, final boolean incremental,
+            final Runnable done) {
+        AsyncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean posted = false;
+                try {
+                    ContentResolver cr = context.getContentResolver();
+                    List<AlarmInstance> instances = AlarmInstance.getInstances(cr, null);
+
+                    // The stored trigger times used to find the next alarm depend on the
+                    // time zone
+                    AlarmInstance.updateTriggerTimes(cr, instances);
+
+                    postInstanceFixes(context, instances, incremental, done);
+                    posted = true;
+                } finally {
+                    if (!posted) {
+                        done.run();
+                    }
+                }
+            }
+        });
+    }
+
+    private static void postInstanceFixes(final Context context, List<AlarmInstance> instances,
+            final boolean incremental, final Runnable done) {
+        final int count = instances.size();
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final AtomicInteger registered = new AtomicInteger();
+        final AtomicInteger rescheduled = new AtomicInteger();
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Arm a single wakeup for the earliest state change of all instances
+                    AlarmScheduler.endBatch(context);
+                    Log.i("Fixed alarm instances: " + registered.get() + " registered, " +
+                            rescheduled.get() + " rescheduled, " +
+                            (count - registered.get() - rescheduled.get()) + " unchanged");
+                    updateNextAlarm(context);
+                } finally {
+                    done.run();
+                }
+            }
+        };
+
+        AlarmScheduler.beginBatch();
+        if (count == 0) {
+            finish.run();
+            return;
+        }
+        for (AlarmInstance instance : instances) {
+            final long instanceId = instance.mId;
+            AsyncHandler.post(instanceId, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Changes posted for the instance before its fix have been made, so
+                        // read it again
+                        AlarmInstance current =
+                                AlarmInstance.getInstance(context.getContentResolver(), instanceId);
+                        if (current == null) {
+                            return;
+                        }
+                        switch (fixAlarmInstance(context, current, incremental)) {
+                            case FIX_REGISTERED:
+                                registered.incrementAndGet();
+                                break;
+                            case FIX_RESCHEDULED:
+                                rescheduled.incrementAndGet();
+                                break;
+                        }
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            finish.run();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // Outcomes of fixAlarmInstance
+    private static final int FIX_UNCHANGED = 0;
+    private static final int FIX_RESCHEDULED = 1;
+    private static final int FIX_REGISTERED = 2;
+
+    private static int fixAlarmInstance(Context context, AlarmInstance instance,
+            boolean incremental) {
+        if (incremental && instance.mAlarmState != AlarmInstance.DISMISSED_STATE
+                && getRegisteredState(context, instance, System.currentTimeMillis())
+                        == instance.mAlarmState) {
+            // State is unchanged, make sure the next state change is still right
+            AlarmScheduler.StateChange expected =
+                    AlarmScheduler.getNextStateChange(context, instance);
+            AlarmScheduler.StateChange pending =
+                    AlarmScheduler.getStateChange(context, instance.mId);
+            if (expected == null) {
+                if (pending != null) {
+                    cancelScheduledInstance(context, instance);
+                    return FIX_RESCHEDULED;
+                }
+            } else if (!expected.isSameChange(pending)) {
+                AlarmScheduler.schedule(context, instance, expected.time, expected.state);
+                return FIX_RESCHEDULED;
+            }
+            return FIX_UNCHANGED;
         }
-        AlarmStateManager.updateNextAlarm(context);
+        registerInstance(context, instance, false);
+        return FIX_REGISTERED;
     }
 
     /**
@@ -661,16 +865,110 @@ public final class AlarmStateManager extends BroadcastReceiver {
     @Override
     public void onReceive(final Context context, final Intent intent) {
         final PendingResult result = goAsync();
-        final PowerManager.WakeLock wl = AlarmAlertWakeLock.createPartialWakeLock(context);
-        wl.acquire();
-        AsyncHandler.post(new Runnable() {
+        final ReceiverWakeLock wl = ReceiverWakeLock.acquire(context, intent.getAction());
+        final Runnable finish = new Runnable() {
             @Override
             public void run() {
-                handleIntent(context, intent);
                 result.finish();
                 wl.release();
             }
-        });
+        };
+
+        if (AlarmScheduler.WAKEUP_ACTION.equals(intent.getAction())) {
+            // The due state changes are polled here and each is applied on the lane of its
+            // instance, so the wakeup doesn't hold up the changes of other instances
+            AsyncHandler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    wl.onWorkStarted();
+                    applyDueStateChanges(context, finish);
+                }
+            });
+            return;
+        }
+
+        Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                wl.onWorkStarted();
+                try {
+                    handleIntent(context, intent);
+                } finally {
+                    finish.run();
+                }
+            }
+        };
+
+        // Changes to a single instance only need to stay in order with other changes to the
+        // same instance. Anything else has no instance to stay in order with.
+        Uri uri = intent.getData();
+        if (uri != null && (CHANGE_STATE_ACTION.equals(intent.getAction())
+                || SHOW_AND_DISMISS_ALARM_ACTION.equals(intent.getAction()))) {
+            AsyncHandler.post(AlarmInstance.getId(uri), work);
+        } else {
+            AsyncHandler.execute(work);
+        }
+    }
+
+    /**
+     * Poll the due state changes of the scheduler and post each of them on the lane of its
+     * instance. The scheduler re-arms and done runs once they are all applied.
+     */
+    private void applyDueStateChanges(final Context context, final Runnable done) {
+        final List<AlarmScheduler.StateChange> changes;
+        try {
+            changes = AlarmScheduler.pollDueStateChanges(context, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            done.run();
+            throw e;
+        }
+
+        final Runnable finish = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Re-arm for the next pending state change
+                    AlarmScheduler.endBatch(context);
+                } finally {
+                    done.run();
+                }
+            }
+        };
+        if (changes.isEmpty()) {
+            finish.run();
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(changes.size());
+        for (final AlarmScheduler.StateChange change : changes) {
+            AsyncHandler.post(change.instanceId, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        applyStateChange(context, change);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            finish.run();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void applyStateChange(Context context, AlarmScheduler.StateChange change) {
+        if (!AlarmScheduler.claimStateChange(change)) {
+            Log.i("Skipping state change replaced while it was queued: " + change);
+            return;
+        }
+        AlarmInstance instance = AlarmInstance.getInstance(context.getContentResolver(),
+                change.instanceId);
+        if (instance == null) {
+            // Not a big deal, but it shouldn't happen
+            Log.e("Can not change state for unknown instance: " + change.instanceId);
+            return;
+        }
+        setAlarmState(context, instance, change.state);
     }
 
     private void handleIntent(Context context, Intent intent) {
@@ -16,6 +16,7 @@
 
 package com.android.deskclock.provider;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -137,8 +138,13 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
      * @return alarm if found, null otherwise
      */
     public static Alarm getAlarm(ContentResolver contentResolver, long alarmId) {
+        Alarm result = AlarmCache.getAlarm(alarmId);
+        if (result != null) {
+            return result;
+        }
+
+        int generation = AlarmCache.getAlarmsGeneration();
         Cursor cursor = contentResolver.query(getUri(alarmId), QUERY_COLUMNS, null, null, null);
-        Alarm result = null;
         if (cursor == null) {
             return result;
         }
@@ -146,6 +152,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         try {
             if (cursor.moveToFirst()) {
                 result = new Alarm(cursor);
+                AlarmCache.putAlarm(result, generation);
             }
         } finally {
             cursor.close();
@@ -168,6 +175,7 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
      */
     public static List<Alarm> getAlarms(ContentResolver contentResolver,
             String selection, String ... selectionArgs) {
+        int generation = AlarmCache.getAlarmsGeneration();
         Cursor cursor  = contentResolver.query(CONTENT_URI, QUERY_COLUMNS,
                 selection, selectionArgs, null);
         List<Alarm> result = new LinkedList<Alarm>();
@@ -178,7 +186,9 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         try {
             if (cursor.moveToFirst()) {
                 do {
-                    result.add(new Alarm(cursor));
+                    Alarm alarm = new Alarm(cursor);
+                    AlarmCache.putAlarm(alarm, generation);
+                    result.add(alarm);
                 } while (cursor.moveToNext());
             }
         } finally {
@@ -190,16 +200,24 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
 
     public static Alarm addAlarm(ContentResolver contentResolver, Alarm alarm) {
         ContentValues values = createContentValues(alarm);
+        int generation = AlarmCache.getAlarmsGeneration();
         Uri uri = contentResolver.insert(CONTENT_URI, values);
         alarm.id = getId(uri);
+        AlarmCache.putAlarm(alarm, generation);
         return alarm;
     }
 
     public static boolean updateAlarm(ContentResolver contentResolver, Alarm alarm) {
         if (alarm.id == Alarm.INVALID_ID) return false;
         ContentValues values = createContentValues(alarm);
+        int generation = AlarmCache.getAlarmsGeneration();
         long rowsUpdated = contentResolver.update(getUri(alarm.id), values, null, null);
-        return rowsUpdated == 1;
+        if (rowsUpdated == 1) {
+            // The update invalidated the alarm once, anything more is another writer
+            AlarmCache.putAlarm(alarm, generation + 1);
+            return true;
+        }
+        return false;
     }
 
     public static boolean deleteAlarm(ContentResolver contentResolver, long alarmId) {
@@ -208,6 +226,16 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         return deletedRows == 1;
     }
 
+    public static ContentProviderOperation newUpdateOperation(Alarm alarm) {
+        return ContentProviderOperation.newUpdate(getUri(alarm.id))
+                .withValues(createContentValues(alarm))
+                .build();
+    }
+
+    public static ContentProviderOperation newDeleteOperation(long alarmId) {
+        return ContentProviderOperation.newDelete(getUri(alarmId)).build();
+    }
+
     public static final Parcelable.Creator<Alarm> CREATOR = new Parcelable.Creator<Alarm>() {
         public Alarm createFromParcel(Parcel p) {
             return new Alarm(p);
@@ -268,6 +296,19 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
         }
     }
 
+    Alarm(Alarm other) {
+        id = other.id;
+        enabled = other.enabled;
+        hour = other.hour;
+        minutes = other.minutes;
+        daysOfWeek = new DaysOfWeek(other.daysOfWeek.getBitSet());
+        vibrate = other.vibrate;
+        label = other.label;
+        alert = other.alert;
+        deleteAfterUse = other.deleteAfterUse;
+        increasingVolume = other.increasingVolume;
+    }
+
     Alarm(Parcel p) {
         id = p.readLong();
         enabled = p.readInt() == 1;
@@ -306,25 +347,10 @@ public final class Alarm implements Parcelable, ClockContract.AlarmsColumns {
     }
 
     public AlarmInstance createInstanceAfter(Calendar time) {
-        Calendar nextInstanceTime = Calendar.getInstance();
-        nextInstanceTime.set(Calendar.YEAR, time.get(Calendar.YEAR));
-        nextInstanceTime.set(Calendar.MONTH, time.get(Calendar.MONTH));
-        nextInstanceTime.set(Calendar.DAY_OF_MONTH, time.get(Calendar.DAY_OF_MONTH));
-        nextInstanceTime.set(Calendar.HOUR_OF_DAY, hour);
-        nextInstanceTime.set(Calendar.MINUTE, minutes);
-        nextInstanceTime.set(Calendar.SECOND, 0);
-        nextInstanceTime.set(Calendar.MILLISECOND, 0);
-
-        // If we are still behind the passed in time, then add a day
-        if (nextInstanceTime.getTimeInMillis() <= time.getTimeInMillis()) {
-            nextInstanceTime.add(Calendar.DAY_OF_YEAR, 1);
-        }
-
-        // The day of the week might be invalid, so find next valid one
-        int addDays = daysOfWeek.calculateDaysToNextAlarm(nextInstanceTime);
-        if (addDays > 0) {
-            nextInstanceTime.add(Calendar.DAY_OF_WEEK, addDays);
-        }
+        Calendar nextInstanceTime = Calendar.getInstance(time.getTimeZone());
+        nextInstanceTime.setTimeInMillis(AlarmTimeCalculator.getNextAlarmTime(
+                time.getTimeInMillis(), time.getTimeZone(), hour, minutes,
+                daysOfWeek.getBitSet()));
 
         AlarmInstance result = new AlarmInstance(nextInstanceTime, id);
         result.mVibrate = vibrate;
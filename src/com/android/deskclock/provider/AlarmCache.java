@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.provider;
+
+import java.util.HashMap;
+
+/**
+ * Process wide cache of alarm and instance rows, keyed by id. It sits behind the static
+ * accessors of {@link Alarm} and {@link AlarmInstance}: reads are served from memory when
+ * possible, and rows written through those accessors are stored right away.
+ *
+ * {@link ClockProvider} runs in this process and drops the affected entries whenever it
+ * changes a row, so writes made through batches or raw resolver calls are never served stale.
+ * Every invalidation bumps a generation, and rows read from the database are only stored if
+ * no invalidation happened while they were being read. Rows written through the accessors are
+ * only stored if the only invalidation since the write started is the write's own, so of two
+ * concurrent writers the older row is never left in the cache.
+ *
+ * Cached objects are mutable, so they are copied on the way in and on the way out.
+ */
+public final class AlarmCache {
+    private static final HashMap<Long, Alarm> sAlarms = new HashMap<Long, Alarm>();
+    private static final HashMap<Long, AlarmInstance> sInstances =
+            new HashMap<Long, AlarmInstance>();
+
+    private static int sAlarmsGeneration = 0;
+    private static int sInstancesGeneration = 0;
+
+    /**
+     * @return copy of the cached alarm, or null if it is not cached
+     */
+    static synchronized Alarm getAlarm(long alarmId) {
+        Alarm alarm = sAlarms.get(alarmId);
+        return alarm == null ? null : new Alarm(alarm);
+    }
+
+    /**
+     * @return generation to pass to {@link #putAlarm(Alarm, int)} for alarms about to be read
+     */
+    static synchronized int getAlarmsGeneration() {
+        return sAlarmsGeneration;
+    }
+
+    /**
+     * Store an alarm read from or written to the database, unless alarms were invalidated
+     * since generation.
+     */
+    static synchronized void putAlarm(Alarm alarm, int generation) {
+        if (generation == sAlarmsGeneration) {
+            sAlarms.put(alarm.id, new Alarm(alarm));
+        }
+    }
+
+    static synchronized void invalidateAlarm(long alarmId) {
+        sAlarmsGeneration++;
+        sAlarms.remove(alarmId);
+    }
+
+    static synchronized void invalidateAlarms() {
+        sAlarmsGeneration++;
+        sAlarms.clear();
+    }
+
+    /**
+     * @return copy of the cached instance, or null if it is not cached
+     */
+    static synchronized AlarmInstance getInstance(long instanceId) {
+        AlarmInstance instance = sInstances.get(instanceId);
+        return instance == null ? null : new AlarmInstance(instance);
+    }
+
+    /**
+     * @return generation to pass to {@link #putInstance(AlarmInstance, int)} for instances
+     *         about to be read
+     */
+    static synchronized int getInstancesGeneration() {
+        return sInstancesGeneration;
+    }
+
+    /**
+     * Store an instance read from or written to the database, unless instances were
+     * invalidated since generation.
+     */
+    static synchronized void putInstance(AlarmInstance instance, int generation) {
+        if (generation == sInstancesGeneration) {
+            sInstances.put(instance.mId, new AlarmInstance(instance));
+        }
+    }
+
+    static synchronized void invalidateInstance(long instanceId) {
+        sInstancesGeneration++;
+        sInstances.remove(instanceId);
+    }
+
+    static synchronized void invalidateInstances() {
+        sInstancesGeneration++;
+        sInstances.clear();
+    }
+
+    /**
+     * Drop every cached alarm and instance, ie. after rows were read from another resolver.
+     */
+    public static void clear() {
+        invalidateAlarms();
+        invalidateInstances();
+    }
+
+    private AlarmCache() {}
+}
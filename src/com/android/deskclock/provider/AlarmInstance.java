@@ -16,6 +16,7 @@
 
 package com.android.deskclock.provider;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -25,14 +26,17 @@ import android.database.Cursor;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.preference.PreferenceManager;
+import android.text.format.DateUtils;
 
 import com.android.deskclock.Log;
 import com.android.deskclock.R;
 import com.android.deskclock.SettingsActivity;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.TimeZone;
 
 public final class AlarmInstance implements ClockContract.InstancesColumns {
     /**
@@ -73,6 +77,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
             ALARM_ID,
             ALARM_STATE,
             INCREASING_VOLUME,
+            TRIGGER_TIME,
     };
 
     /**
@@ -91,9 +96,19 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
     private static final int ALARM_ID_INDEX = 9;
     private static final int ALARM_STATE_INDEX = 10;
     private static final int INCREASING_VOLUME_INDEX = 11;
+    private static final int TRIGGER_TIME_INDEX = 12;
 
-    private static final int COLUMN_COUNT = INCREASING_VOLUME_INDEX + 1;
-    private Calendar mTimeout;
+    private static final int COLUMN_COUNT = TRIGGER_TIME_INDEX + 1;
+
+    private static final long LOW_NOTIFICATION_OFFSET_MILLIS =
+            LOW_NOTIFICATION_HOUR_OFFSET * DateUtils.HOUR_IN_MILLIS;
+    private static final long HIGH_NOTIFICATION_OFFSET_MILLIS =
+            HIGH_NOTIFICATION_MINUTE_OFFSET * DateUtils.MINUTE_IN_MILLIS;
+    private static final long MISSED_TIME_TO_LIVE_OFFSET_MILLIS =
+            MISSED_TIME_TO_LIVE_HOUR_OFFSET * DateUtils.HOUR_IN_MILLIS;
+
+    // Incremented when the default time zone changes, which invalidates every cached alarm time.
+    private static volatile int sTimeZoneGeneration = 0;
 
     public static ContentValues createContentValues(AlarmInstance instance) {
         ContentValues values = new ContentValues(COLUMN_COUNT);
@@ -119,6 +134,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         }
         values.put(ALARM_ID, instance.mAlarmId);
         values.put(ALARM_STATE, instance.mAlarmState);
+        values.put(TRIGGER_TIME, instance.getAlarmTimeInMillis());
         return values;
     }
 
@@ -146,7 +162,41 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
      * @return instance if found, null otherwise
      */
     public static AlarmInstance getInstance(ContentResolver contentResolver, long instanceId) {
+        AlarmInstance result = AlarmCache.getInstance(instanceId);
+        if (result != null) {
+            return result;
+        }
+
+        int generation = AlarmCache.getInstancesGeneration();
         Cursor cursor = contentResolver.query(getUri(instanceId), QUERY_COLUMNS, null, null, null);
+        if (cursor == null) {
+            return result;
+        }
+
+        try {
+            if (cursor.moveToFirst()) {
+                result = new AlarmInstance(cursor);
+                AlarmCache.putInstance(result, generation);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the instance that will fire next, among the instances that have not fired yet.
+     *
+     * @param contentResolver to perform the query on.
+     * @return next instance to fire, null if there is none
+     */
+    public static AlarmInstance getNextInstance(ContentResolver contentResolver) {
+        Uri uri = CONTENT_URI.buildUpon()
+                .appendQueryParameter(ClockContract.QUERY_PARAMETER_LIMIT, "1")
+                .build();
+        Cursor cursor = contentResolver.query(uri, QUERY_COLUMNS,
+                ALARM_STATE + "<" + FIRED_STATE, null, TRIGGER_TIME + ", " + _ID);
         AlarmInstance result = null;
         if (cursor == null) {
             return result;
@@ -189,6 +239,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
      */
     public static List<AlarmInstance> getInstances(ContentResolver contentResolver,
             String selection, String ... selectionArgs) {
+        int generation = AlarmCache.getInstancesGeneration();
         Cursor cursor  = contentResolver.query(CONTENT_URI, QUERY_COLUMNS,
                 selection, selectionArgs, null);
         List<AlarmInstance> result = new LinkedList<AlarmInstance>();
@@ -199,7 +250,9 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         try {
             if (cursor.moveToFirst()) {
                 do {
-                    result.add(new AlarmInstance(cursor));
+                    AlarmInstance instance = new AlarmInstance(cursor);
+                    AlarmCache.putInstance(instance, generation);
+                    result.add(instance);
                 } while (cursor.moveToNext());
             }
         } finally {
@@ -214,29 +267,117 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         // Make sure we are not adding a duplicate instances. This is not a
         // fix and should never happen. This is only a safe guard against bad code, and you
         // should fix the root issue if you see the error message.
+        if (findDuplicateInstance(contentResolver, instance)) {
+            updateInstance(contentResolver, instance);
+            return instance;
+        }
+
+        ContentValues values = createContentValues(instance);
+        int generation = AlarmCache.getInstancesGeneration();
+        Uri uri = contentResolver.insert(CONTENT_URI, values);
+        instance.mId = getId(uri);
+        instance.mSavedTriggerTime = instance.getAlarmTimeInMillis();
+        AlarmCache.putInstance(instance, generation);
+        return instance;
+    }
+
+    /**
+     * Create an operation that adds the instance, to be used with
+     * {@link ClockContract#applyBatch}. Like {@link #addInstance}, this updates a duplicate
+     * instance instead of adding a new one. If the operation is an insert, the instance id
+     * stays {@link #INVALID_ID} until it is read from the operation result.
+     *
+     * @param contentResolver to look for duplicates with.
+     * @param instance to add.
+     * @return insert or update operation for the instance.
+     */
+    public static ContentProviderOperation newAddOperation(ContentResolver contentResolver,
+            AlarmInstance instance) {
+        if (findDuplicateInstance(contentResolver, instance)) {
+            return newUpdateOperation(instance);
+        }
+        return ContentProviderOperation.newInsert(CONTENT_URI)
+                .withValues(createContentValues(instance))
+                .build();
+    }
+
+    public static ContentProviderOperation newUpdateOperation(AlarmInstance instance) {
+        return ContentProviderOperation.newUpdate(getUri(instance.mId))
+                .withValues(createContentValues(instance))
+                .build();
+    }
+
+    public static ContentProviderOperation newDeleteOperation(long instanceId) {
+        return ContentProviderOperation.newDelete(getUri(instanceId)).build();
+    }
+
+    /**
+     * Look for an instance of the same alarm at the same time. If one is found, its id is
+     * copied over to instance.
+     *
+     * @return true if a duplicate was found
+     */
+    private static boolean findDuplicateInstance(ContentResolver contentResolver,
+            AlarmInstance instance) {
         String dupSelector = AlarmInstance.ALARM_ID + " = " + instance.mAlarmId;
         for (AlarmInstance otherInstances : getInstances(contentResolver, dupSelector)) {
-            if (otherInstances.getAlarmTime().equals(instance.getAlarmTime())) {
+            if (otherInstances.getAlarmTimeInMillis() == instance.getAlarmTimeInMillis()) {
                 Log.i("Detected duplicate instance in DB. Updating " + otherInstances + " to "
                         + instance);
-                // Copy over the new instance values and update the db
+                // Copy over the new instance id so the db entry gets updated
                 instance.mId = otherInstances.mId;
-                updateInstance(contentResolver, instance);
-                return instance;
+                return true;
             }
         }
-
-        ContentValues values = createContentValues(instance);
-        Uri uri = contentResolver.insert(CONTENT_URI, values);
-        instance.mId = getId(uri);
-        return instance;
+        return false;
     }
 
     public static boolean updateInstance(ContentResolver contentResolver, AlarmInstance instance) {
         if (instance.mId == INVALID_ID) return false;
         ContentValues values = createContentValues(instance);
+        int generation = AlarmCache.getInstancesGeneration();
         long rowsUpdated = contentResolver.update(getUri(instance.mId), values, null, null);
-        return rowsUpdated == 1;
+        if (rowsUpdated == 1) {
+            instance.mSavedTriggerTime = instance.getAlarmTimeInMillis();
+            // The update invalidated the instance once, anything more is another writer
+            AlarmCache.putInstance(instance, generation + 1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Rewrite the stored trigger time of every instance whose alarm time maps to a different
+     * moment than when it was saved, ie. after a time zone change. This is done in a single
+     * transaction and only touches the trigger time column.
+     *
+     * @param contentResolver to perform the update on.
+     * @param instances to check.
+     */
+    public static void updateTriggerTimes(ContentResolver contentResolver,
+            List<AlarmInstance> instances) {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (AlarmInstance instance : instances) {
+            long triggerTime = instance.getAlarmTimeInMillis();
+            if (instance.mSavedTriggerTime != triggerTime) {
+                ops.add(ContentProviderOperation.newUpdate(getUri(instance.mId))
+                        .withValue(TRIGGER_TIME, triggerTime)
+                        .build());
+                instance.mSavedTriggerTime = triggerTime;
+            }
+        }
+        if (!ops.isEmpty()) {
+            Log.i("Updating trigger time of " + ops.size() + " instances");
+            ClockContract.applyBatch(contentResolver, ops);
+        }
+    }
+
+    /**
+     * Drop the cached alarm time of every instance. Must be called when the default time zone
+     * changes, since the alarm time fields are in local time.
+     */
+    public static void onTimeZoneChanged() {
+        sTimeZoneGeneration++;
     }
 
     public static boolean deleteInstance(ContentResolver contentResolver, long instanceId) {
@@ -259,6 +400,14 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
     public int mAlarmState;
     public boolean mIncreasingVolume;
 
+    // Trigger time stored in the database, used to detect stale rows.
+    private long mSavedTriggerTime;
+
+    // Alarm time in millis and the time zone generation it was computed for. The derived
+    // notification and timeout times are fixed offsets from it.
+    private long mAlarmTimeInMillis;
+    private int mAlarmTimeGeneration = -1;
+
     public AlarmInstance(Calendar calendar, Long alarmId) {
         this(calendar);
         mAlarmId = alarmId;
@@ -274,6 +423,24 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         mAlarmState = SILENT_STATE;
     }
 
+    AlarmInstance(AlarmInstance other) {
+        mId = other.mId;
+        mYear = other.mYear;
+        mMonth = other.mMonth;
+        mDay = other.mDay;
+        mHour = other.mHour;
+        mMinute = other.mMinute;
+        mLabel = other.mLabel;
+        mVibrate = other.mVibrate;
+        mRingtone = other.mRingtone;
+        mAlarmId = other.mAlarmId;
+        mAlarmState = other.mAlarmState;
+        mIncreasingVolume = other.mIncreasingVolume;
+        mSavedTriggerTime = other.mSavedTriggerTime;
+        mAlarmTimeInMillis = other.mAlarmTimeInMillis;
+        mAlarmTimeGeneration = other.mAlarmTimeGeneration;
+    }
+
     public AlarmInstance(Cursor c) {
         mId = c.getLong(ID_INDEX);
         mYear = c.getInt(YEAR_INDEX);
@@ -281,6 +448,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         mDay = c.getInt(DAY_INDEX);
         mHour = c.getInt(HOUR_INDEX);
         mMinute = c.getInt(MINUTES_INDEX);
+        mAlarmTimeGeneration = -1;
         mLabel = c.getString(LABEL_INDEX);
         mVibrate = c.getInt(VIBRATE_INDEX) == 1;
         mIncreasingVolume = c.getInt(INCREASING_VOLUME_INDEX) == 1;
@@ -296,6 +464,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
             mAlarmId = c.getLong(ALARM_ID_INDEX);
         }
         mAlarmState = c.getInt(ALARM_STATE_INDEX);
+        mSavedTriggerTime = c.getLong(TRIGGER_TIME_INDEX);
     }
 
     public String getLabelOrDefault(Context context) {
@@ -308,6 +477,67 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
         mDay = calendar.get(Calendar.DAY_OF_MONTH);
         mHour = calendar.get(Calendar.HOUR_OF_DAY);
         mMinute = calendar.get(Calendar.MINUTE);
+        mAlarmTimeGeneration = -1;
+    }
+
+    /**
+     * Return the time when a alarm should fire.
+     *
+     * @return the time in millis
+     */
+    public long getAlarmTimeInMillis() {
+        final int generation = sTimeZoneGeneration;
+        if (mAlarmTimeGeneration != generation) {
+            mAlarmTimeInMillis = AlarmTimeCalculator.getTimeInMillis(mYear, mMonth, mDay, mHour,
+                    mMinute, TimeZone.getDefault());
+            mAlarmTimeGeneration = generation;
+        }
+        return mAlarmTimeInMillis;
+    }
+
+    /**
+     * Return the time when a low priority notification should be shown.
+     *
+     * @return the time in millis
+     */
+    public long getLowNotificationTimeInMillis() {
+        return getAlarmTimeInMillis() + LOW_NOTIFICATION_OFFSET_MILLIS;
+    }
+
+    /**
+     * Return the time when a high priority notification should be shown.
+     *
+     * @return the time in millis
+     */
+    public long getHighNotificationTimeInMillis() {
+        return getAlarmTimeInMillis() + HIGH_NOTIFICATION_OFFSET_MILLIS;
+    }
+
+    /**
+     * Return the time when a missed notification should be removed.
+     *
+     * @return the time in millis
+     */
+    public long getMissedTimeToLiveInMillis() {
+        return getAlarmTimeInMillis() + MISSED_TIME_TO_LIVE_OFFSET_MILLIS;
+    }
+
+    /**
+     * Return the time when the alarm should stop firing and be marked as missed.
+     *
+     * @param context to figure out the timeout setting
+     * @return the time in millis when alarm should be silenced, or -1 if never
+     */
+    public long getTimeoutInMillis(Context context) {
+        String timeoutSetting = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(SettingsActivity.KEY_AUTO_SILENCE, DEFAULT_ALARM_TIMEOUT_SETTING);
+        int timeoutMinutes = Integer.parseInt(timeoutSetting);
+
+        // Alarm silence has been set to "None"
+        if (timeoutMinutes < 0) {
+            return -1;
+        }
+        return getAlarmTimeInMillis() + timeoutMinutes * DateUtils.MINUTE_IN_MILLIS;
     }
 
     /**
@@ -316,15 +546,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
      * @return the time
      */
     public Calendar getAlarmTime() {
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(Calendar.YEAR, mYear);
-        calendar.set(Calendar.MONTH, mMonth);
-        calendar.set(Calendar.DAY_OF_MONTH, mDay);
-        calendar.set(Calendar.HOUR_OF_DAY, mHour);
-        calendar.set(Calendar.MINUTE, mMinute);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-        return calendar;
+        return toCalendar(getAlarmTimeInMillis());
     }
 
     /**
@@ -333,9 +555,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
      * @return the time
      */
     public Calendar getLowNotificationTime() {
-        Calendar calendar = getAlarmTime();
-        calendar.add(Calendar.HOUR_OF_DAY, LOW_NOTIFICATION_HOUR_OFFSET);
-        return calendar;
+        return toCalendar(getLowNotificationTimeInMillis());
     }
 
     /**
@@ -344,9 +564,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
      * @return the time
      */
     public Calendar getHighNotificationTime() {
-        Calendar calendar = getAlarmTime();
-        calendar.add(Calendar.MINUTE, HIGH_NOTIFICATION_MINUTE_OFFSET);
-        return calendar;
+        return toCalendar(getHighNotificationTimeInMillis());
     }
 
     /**
@@ -355,9 +573,7 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
      * @return the time
      */
     public Calendar getMissedTimeToLive() {
-        Calendar calendar = getAlarmTime();
-        calendar.add(Calendar.HOUR, MISSED_TIME_TO_LIVE_HOUR_OFFSET);
-        return calendar;
+        return toCalendar(getMissedTimeToLiveInMillis());
     }
 
     /**
@@ -367,17 +583,13 @@ public final class AlarmInstance implements ClockContract.InstancesColumns {
      * @return the time when alarm should be silence, or null if never
      */
     public Calendar getTimeout(Context context) {
-        String timeoutSetting = PreferenceManager.getDefaultSharedPreferences(context)
-                .getString(SettingsActivity.KEY_AUTO_SILENCE, DEFAULT_ALARM_TIMEOUT_SETTING);
-        int timeoutMinutes = Integer.parseInt(timeoutSetting);
-
-        // Alarm silence has been set to "None"
-        if (timeoutMinutes < 0) {
-            return null;
-        }
+        long timeout = getTimeoutInMillis(context);
+        return timeout < 0 ? null : toCalendar(timeout);
+    }
 
-        Calendar calendar = getAlarmTime();
-        calendar.add(Calendar.MINUTE, timeoutMinutes);
+    private static Calendar toCalendar(long timeInMillis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeInMillis);
         return calendar;
     }
 
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.provider;
+
+import java.util.TimeZone;
+
+/**
+ * Computes alarm occurrences directly on epoch millis, without going through
+ * {@link java.util.Calendar}.
+ *
+ * Local times that are skipped by a daylight saving transition are moved forward by the
+ * length of the gap, and local times that happen twice resolve to the later one. This is
+ * how a lenient Calendar resolves them, so results match {@link Alarm#createInstanceAfter}.
+ *
+ * Days of the week use the {@link DaysOfWeek} bit layout, with monday at bit index 0.
+ */
+public final class AlarmTimeCalculator {
+    private static final long MINUTE_IN_MILLIS = 60 * 1000;
+    private static final long HOUR_IN_MILLIS = 60 * MINUTE_IN_MILLIS;
+    private static final long DAY_IN_MILLIS = 24 * HOUR_IN_MILLIS;
+
+    // 1970-01-01 was a thursday, which is bit index 3.
+    private static final int EPOCH_DAY_BIT_INDEX = 3;
+
+    private static final int DAY_MASK_COUNT = DaysOfWeek.ALL_DAYS_SET + 1;
+
+    /**
+     * Days from a day of the week to the next enabled day, indexed by
+     * dayBitIndex * DAY_MASK_COUNT + daysOfWeek. -1 when no day is enabled.
+     */
+    private static final byte[] DAYS_TO_NEXT_ALARM =
+            new byte[DaysOfWeek.DAYS_IN_A_WEEK * DAY_MASK_COUNT];
+
+    static {
+        for (int dayBitIndex = 0; dayBitIndex < DaysOfWeek.DAYS_IN_A_WEEK; dayBitIndex++) {
+            for (int daysOfWeek = 0; daysOfWeek < DAY_MASK_COUNT; daysOfWeek++) {
+                int days = -1;
+                for (int count = 0; count < DaysOfWeek.DAYS_IN_A_WEEK; count++) {
+                    int bitIndex = (dayBitIndex + count) % DaysOfWeek.DAYS_IN_A_WEEK;
+                    if ((daysOfWeek & (1 << bitIndex)) != 0) {
+                        days = count;
+                        break;
+                    }
+                }
+                DAYS_TO_NEXT_ALARM[dayBitIndex * DAY_MASK_COUNT + daysOfWeek] = (byte) days;
+            }
+        }
+    }
+
+    /**
+     * Return the number of days from a day of the week to the next enabled day.
+     *
+     * @param dayBitIndex day of the week, monday is 0
+     * @param daysOfWeek enabled days as a {@link DaysOfWeek} bit set
+     * @return days until the next enabled day, 0 if dayBitIndex is enabled, -1 if no day is
+     */
+    public static int getDaysToNextAlarm(int dayBitIndex, int daysOfWeek) {
+        return DAYS_TO_NEXT_ALARM[dayBitIndex * DAY_MASK_COUNT
+                + (daysOfWeek & DaysOfWeek.ALL_DAYS_SET)];
+    }
+
+    /**
+     * Return the first time strictly after timeInMillis when an alarm set to hour:minutes
+     * on the given days should fire. A non repeating alarm fires at the next hour:minutes.
+     *
+     * @param timeInMillis time to start from
+     * @param timeZone time zone the alarm time is in
+     * @param hour alarm hour, 0 - 23
+     * @param minutes alarm minutes, 0 - 59
+     * @param daysOfWeek enabled days as a {@link DaysOfWeek} bit set
+     * @return next alarm time in millis
+     */
+    public static long getNextAlarmTime(long timeInMillis, TimeZone timeZone, int hour,
+            int minutes, int daysOfWeek) {
+        long localTime = timeInMillis + timeZone.getOffset(timeInMillis);
+        long day = floorDiv(localTime, DAY_IN_MILLIS);
+        long timeOfDay = hour * HOUR_IN_MILLIS + minutes * MINUTE_IN_MILLIS;
+
+        long nextTime = toUtc(day * DAY_IN_MILLIS + timeOfDay, timeZone);
+        if (nextTime <= timeInMillis) {
+            day++;
+        }
+
+        // The day of the week might be invalid, so find next valid one
+        int addDays = getDaysToNextAlarm(getDayBitIndex(day), daysOfWeek);
+        if (addDays > 0) {
+            day += addDays;
+        }
+
+        if (nextTime <= timeInMillis || addDays > 0) {
+            nextTime = toUtc(day * DAY_IN_MILLIS + timeOfDay, timeZone);
+        }
+        return nextTime;
+    }
+
+    /**
+     * Fill times with the next occurrences of an alarm, in order. A non repeating alarm only
+     * has one occurrence.
+     *
+     * @param timeInMillis time to start from, the first occurrence is strictly after it
+     * @param timeZone time zone the alarm time is in
+     * @param hour alarm hour, 0 - 23
+     * @param minutes alarm minutes, 0 - 59
+     * @param daysOfWeek enabled days as a {@link DaysOfWeek} bit set
+     * @param times array to fill with occurrences in millis
+     * @return number of occurrences written to times
+     */
+    public static int getNextAlarmTimes(long timeInMillis, TimeZone timeZone, int hour,
+            int minutes, int daysOfWeek, long[] times) {
+        int count = 0;
+        long time = timeInMillis;
+        while (count < times.length) {
+            time = getNextAlarmTime(time, timeZone, hour, minutes, daysOfWeek);
+            times[count++] = time;
+            if ((daysOfWeek & DaysOfWeek.ALL_DAYS_SET) == DaysOfWeek.NO_DAYS_SET) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the millis of a local date and time, resolved the same way as a lenient Calendar.
+     *
+     * @param year year
+     * @param month month, 0 - 11 like {@link java.util.Calendar#MONTH}
+     * @param day day of the month, 1 - 31
+     * @param hour hour, 0 - 23
+     * @param minutes minutes, 0 - 59
+     * @param timeZone time zone of the local time
+     * @return time in millis
+     */
+    static long getTimeInMillis(int year, int month, int day, int hour, int minutes,
+            TimeZone timeZone) {
+        long localTime = getEpochDay(year, month + 1, day) * DAY_IN_MILLIS
+                + hour * HOUR_IN_MILLIS + minutes * MINUTE_IN_MILLIS;
+        return toUtc(localTime, timeZone);
+    }
+
+    /**
+     * Return the days since 1970-01-01 of a date in the proleptic gregorian calendar.
+     */
+    private static long getEpochDay(long year, int month, int day) {
+        // Count years from march so the leap day is the last day of the year
+        if (month <= 2) {
+            year--;
+        }
+        long era = floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Convert a local time, expressed as millis since the local epoch, to UTC millis.
+     */
+    static long toUtc(long localTime, TimeZone timeZone) {
+        // A day on each side is further than any offset, so this brackets every transition
+        // that could apply to localTime.
+        int earlyOffset = timeZone.getOffset(localTime - DAY_IN_MILLIS);
+        int lateOffset = timeZone.getOffset(localTime + DAY_IN_MILLIS);
+        if (earlyOffset == lateOffset) {
+            return localTime - earlyOffset;
+        }
+
+        boolean earlyValid = timeZone.getOffset(localTime - earlyOffset) == earlyOffset;
+        boolean lateValid = timeZone.getOffset(localTime - lateOffset) == lateOffset;
+        if (earlyValid != lateValid) {
+            return localTime - (earlyValid ? earlyOffset : lateOffset);
+        }
+
+        // Local time is either skipped or repeated. Using the smaller offset moves a skipped
+        // time past the gap and picks the later of two repeated times.
+        return localTime - Math.min(earlyOffset, lateOffset);
+    }
+
+    private static int getDayBitIndex(long day) {
+        long index = (day + EPOCH_DAY_BIT_INDEX) % DaysOfWeek.DAYS_IN_A_WEEK;
+        return (int) (index < 0 ? index + DaysOfWeek.DAYS_IN_A_WEEK : index);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long result = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? result - 1 : result;
+    }
+
+    private AlarmTimeCalculator() {}
+}
@@ -15,9 +15,18 @@
  */
 package com.android.deskclock.provider;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.BaseColumns;
 
+import com.android.deskclock.Log;
+
+import java.util.ArrayList;
+
 /**
  * <p>
  * The contract between the clock provider and desk clock. Contains
@@ -43,11 +52,35 @@ public final class ClockContract {
      */
     public static final String AUTHORITY = "com.android.deskclock";
 
+    /**
+     * Query parameter to limit the number of rows returned by a query.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     /**
      * This utility class cannot be instantiated
      */
     private ClockContract() {}
 
+    /**
+     * Apply operations on the clock provider in a single transaction.
+     *
+     * @param contentResolver to apply the operations with.
+     * @param operations to apply.
+     * @return results of the operations, or null if the batch failed.
+     */
+    public static ContentProviderResult[] applyBatch(ContentResolver contentResolver,
+            ArrayList<ContentProviderOperation> operations) {
+        try {
+            return contentResolver.applyBatch(AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e("Failed to apply " + operations.size() + " operations", e);
+        } catch (OperationApplicationException e) {
+            Log.e("Failed to apply " + operations.size() + " operations", e);
+        }
+        return null;
+    }
+
     /**
      * Constants for tables with AlarmSettings.
      */
@@ -253,6 +286,13 @@ public final class ClockContract {
          * <p>Type: INTEGER</p>
          */
         public static final String ALARM_STATE = "alarm_state";
+
+        /**
+         * Alarm time in milliseconds since epoch, derived from the local date and time
+         * columns. It must be refreshed whenever the time zone changes.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String TRIGGER_TIME = "trigger_time";
     }
 
     /**
@@ -288,4 +328,56 @@ public final class ClockContract {
          */
         public static final String TIMEZONE_OFFSET = "timezone_offset";
     }
+
+    /**
+     * Constants for the Timers table, which contains one row per countdown timer.
+     */
+    public interface TimersColumns extends BaseColumns {
+        /**
+         * The content:// style URL for this table.
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/timers");
+
+        /**
+         * Time the timer was started or last resumed, in elapsed realtime milliseconds.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String START_TIME = "start_time";
+
+        /**
+         * Time left on the timer when it was last updated, in milliseconds.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String TIME_LEFT = "time_left";
+
+        /**
+         * Length of the current run, including minutes added after the timer started.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String ORIGINAL_LENGTH = "original_length";
+
+        /**
+         * Length the timer was set up with.
+         * <p>Type: INTEGER (long)</p>
+         */
+        public static final String SETUP_LENGTH = "setup_length";
+
+        /**
+         * One of the TimerObj states.
+         * <p>Type: INTEGER</p>
+         */
+        public static final String STATE = "state";
+
+        /**
+         * Timer label.
+         * <p>Type: STRING</p>
+         */
+        public static final String LABEL = "label";
+
+        /**
+         * True if the timer should be deleted once it is stopped after going off.
+         * <p>Type: BOOLEAN</p>
+         */
+        public static final String DELETE_AFTER_USE = "delete_after_use";
+    }
 }
@@ -19,18 +19,22 @@ package com.android.deskclock.provider;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 
 import com.android.deskclock.Log;
 import com.android.deskclock.alarms.AlarmStateManager;
 
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Helper class for opening the database from multiple providers.  Also provides
@@ -60,6 +64,21 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
      */
     private static final int VERSION_8 = 10;
 
+    /**
+     * Added trigger time column and next alarm index to instance table
+     */
+    private static final int VERSION_9 = 11;
+
+    /**
+     * Added timers table, replacing the timers kept in shared preferences
+     */
+    private static final int VERSION_10 = 12;
+
+    /**
+     * Next alarm index on the trigger time alone
+     */
+    private static final int VERSION_11 = 13;
+
     // This creates a default alarm at 8:30 for every Mon,Tue,Wed,Thu,Fri
     private static final String DEFAULT_ALARM_1 = "(8, 30, 31, 0, 0, '', NULL, 0, 0);";
 
@@ -72,6 +91,19 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
     static final String ALARMS_TABLE_NAME = "alarm_templates";
     static final String INSTANCES_TABLE_NAME = "alarm_instances";
     static final String CITIES_TABLE_NAME = "selected_cities";
+    static final String INSTANCES_NEXT_ALARM_INDEX_NAME = "alarm_instances_next_alarm";
+    static final String TIMERS_TABLE_NAME = "timers";
+
+    // Keys of the timers saved in shared preferences by older versions
+    private static final String PREF_TIMERS_LIST = "timers_list";
+    private static final String PREF_TIMER_ID = "timer_id_";
+    private static final String PREF_TIMER_START_TIME  = "timer_start_time_";
+    private static final String PREF_TIMER_TIME_LEFT = "timer_time_left_";
+    private static final String PREF_TIMER_ORIGINAL_TIME = "timer_original_timet_";
+    private static final String PREF_TIMER_SETUP_TIME = "timer_setup_timet_";
+    private static final String PREF_TIMER_STATE = "timer_state_";
+    private static final String PREF_TIMER_LABEL = "timer_label_";
+    private static final String PREF_TIMER_DELETE_AFTER_USE = "delete_after_use_";
 
     private static void createAlarmsTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + ALARMS_TABLE_NAME + " (" +
@@ -103,10 +135,21 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
                 ClockContract.InstancesColumns.ALARM_ID + " INTEGER REFERENCES " +
                     ALARMS_TABLE_NAME + "(" + ClockContract.AlarmsColumns._ID + ") " +
                     "ON UPDATE CASCADE ON DELETE CASCADE, " +
-                ClockContract.InstancesColumns.INCREASING_VOLUME + " INTEGER NOT NULL DEFAULT 0);");
+                ClockContract.InstancesColumns.INCREASING_VOLUME + " INTEGER NOT NULL DEFAULT 0, " +
+                ClockContract.InstancesColumns.TRIGGER_TIME + " INTEGER NOT NULL DEFAULT 0);");
+        createNextAlarmIndex(db);
         Log.i("Instance table created");
     }
 
+    private static void createNextAlarmIndex(SQLiteDatabase db) {
+        // The next alarm query walks this index in trigger time order, the rowid breaking ties,
+        // and stops at the first instance in a matching state, so no sort is needed. A range on
+        // the state as the leading column would still sort every active instance.
+        db.execSQL("CREATE INDEX " + INSTANCES_NEXT_ALARM_INDEX_NAME + " ON " +
+                INSTANCES_TABLE_NAME + " (" +
+                ClockContract.InstancesColumns.TRIGGER_TIME + ");");
+    }
+
     private static void createCitiesTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + CITIES_TABLE_NAME + " (" +
                 ClockContract.CitiesColumns.CITY_ID + " TEXT PRIMARY KEY," +
@@ -116,10 +159,23 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
         Log.i("Cities table created");
     }
 
+    private static void createTimersTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TIMERS_TABLE_NAME + " (" +
+                ClockContract.TimersColumns._ID + " INTEGER PRIMARY KEY," +
+                ClockContract.TimersColumns.START_TIME + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.TIME_LEFT + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.ORIGINAL_LENGTH + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.SETUP_LENGTH + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.STATE + " INTEGER NOT NULL, " +
+                ClockContract.TimersColumns.LABEL + " TEXT NOT NULL, " +
+                ClockContract.TimersColumns.DELETE_AFTER_USE + " INTEGER NOT NULL DEFAULT 0);");
+        Log.i("Timers table created");
+    }
+
     private Context mContext;
 
     public ClockDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, VERSION_8);
+        super(context, DATABASE_NAME, null, VERSION_11);
         mContext = context;
     }
 
@@ -128,6 +184,7 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
         createAlarmsTable(db);
         createInstanceTable(db);
         createCitiesTable(db);
+        createTimersTable(db);
 
         // insert default alarms
         Log.i("Inserting default alarms");
@@ -207,14 +264,100 @@ class ClockDatabaseHelper extends SQLiteOpenHelper {
 
             Log.i("Dropping old alarm table");
             db.execSQL("DROP TABLE IF EXISTS " + OLD_ALARMS_TABLE_NAME + ";");
-        } else if (oldVersion < VERSION_8) {
-            db.execSQL("ALTER TABLE " + ALARMS_TABLE_NAME
-                    + " ADD COLUMN " + ClockContract.AlarmsColumns.INCREASING_VOLUME
-                    + " INTEGER NOT NULL DEFAULT 0;");
-            db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME
-                    + " ADD COLUMN " + ClockContract.InstancesColumns.INCREASING_VOLUME
-                    + " INTEGER NOT NULL DEFAULT 0;");
+        } else {
+            if (oldVersion < VERSION_8) {
+                db.execSQL("ALTER TABLE " + ALARMS_TABLE_NAME
+                        + " ADD COLUMN " + ClockContract.AlarmsColumns.INCREASING_VOLUME
+                        + " INTEGER NOT NULL DEFAULT 0;");
+                db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME
+                        + " ADD COLUMN " + ClockContract.InstancesColumns.INCREASING_VOLUME
+                        + " INTEGER NOT NULL DEFAULT 0;");
+            }
+            if (oldVersion < VERSION_9) {
+                db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME
+                        + " ADD COLUMN " + ClockContract.InstancesColumns.TRIGGER_TIME
+                        + " INTEGER NOT NULL DEFAULT 0;");
+                createNextAlarmIndex(db);
+                fillTriggerTimes(db);
+            }
+        }
+
+        if (oldVersion < VERSION_10) {
+            createTimersTable(db);
+            copyTimersFromSharedPrefs(db);
+        }
+
+        if (oldVersion >= VERSION_9 && oldVersion < VERSION_11) {
+            // Older versions indexed the state before the trigger time
+            db.execSQL("DROP INDEX IF EXISTS " + INSTANCES_NEXT_ALARM_INDEX_NAME + ";");
+            createNextAlarmIndex(db);
+        }
+    }
+
+    /**
+     * Move the timers saved in shared preferences by older versions, which kept every field of
+     * every timer in its own key, to the timers table.
+     */
+    private void copyTimersFromSharedPrefs(SQLiteDatabase db) {
+        Log.i("Copying timers from shared preferences to new table");
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        Set<String> ids = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>());
+        SharedPreferences.Editor editor = prefs.edit();
+        ContentValues values = new ContentValues(8);
+        for (String id : ids) {
+            values.clear();
+            values.put(ClockContract.TimersColumns._ID, Integer.parseInt(id));
+            values.put(ClockContract.TimersColumns.START_TIME,
+                    prefs.getLong(PREF_TIMER_START_TIME + id, 0));
+            values.put(ClockContract.TimersColumns.TIME_LEFT,
+                    prefs.getLong(PREF_TIMER_TIME_LEFT + id, 0));
+            values.put(ClockContract.TimersColumns.ORIGINAL_LENGTH,
+                    prefs.getLong(PREF_TIMER_ORIGINAL_TIME + id, 0));
+            values.put(ClockContract.TimersColumns.SETUP_LENGTH,
+                    prefs.getLong(PREF_TIMER_SETUP_TIME + id, 0));
+            values.put(ClockContract.TimersColumns.STATE,
+                    prefs.getInt(PREF_TIMER_STATE + id, 0));
+            values.put(ClockContract.TimersColumns.LABEL,
+                    prefs.getString(PREF_TIMER_LABEL + id, ""));
+            values.put(ClockContract.TimersColumns.DELETE_AFTER_USE,
+                    prefs.getBoolean(PREF_TIMER_DELETE_AFTER_USE + id, false) ? 1 : 0);
+            db.insert(TIMERS_TABLE_NAME, null, values);
+
+            editor.remove(PREF_TIMER_ID + id);
+            editor.remove(PREF_TIMER_START_TIME + id);
+            editor.remove(PREF_TIMER_TIME_LEFT + id);
+            editor.remove(PREF_TIMER_ORIGINAL_TIME + id);
+            editor.remove(PREF_TIMER_SETUP_TIME + id);
+            editor.remove(PREF_TIMER_STATE + id);
+            editor.remove(PREF_TIMER_LABEL + id);
+            editor.remove(PREF_TIMER_DELETE_AFTER_USE + id);
+        }
+        editor.remove(PREF_TIMERS_LIST);
+        editor.apply();
+    }
+
+    private static void fillTriggerTimes(SQLiteDatabase db) {
+        Log.i("Filling in instance trigger times");
+        String[] columns = {
+                ClockContract.InstancesColumns._ID,
+                ClockContract.InstancesColumns.YEAR,
+                ClockContract.InstancesColumns.MONTH,
+                ClockContract.InstancesColumns.DAY,
+                ClockContract.InstancesColumns.HOUR,
+                ClockContract.InstancesColumns.MINUTES
+        };
+        Cursor cursor = db.query(INSTANCES_TABLE_NAME, columns, null, null, null, null, null);
+        Calendar calendar = Calendar.getInstance();
+        ContentValues values = new ContentValues(1);
+        while (cursor.moveToNext()) {
+            calendar.set(cursor.getInt(1), cursor.getInt(2), cursor.getInt(3),
+                    cursor.getInt(4), cursor.getInt(5), 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            values.put(ClockContract.InstancesColumns.TRIGGER_TIME, calendar.getTimeInMillis());
+            db.update(INSTANCES_TABLE_NAME, values,
+                    ClockContract.InstancesColumns._ID + "=" + cursor.getLong(0), null);
         }
+        cursor.close();
     }
 
     long fixAlarmInsert(ContentValues values) {
@@ -17,8 +17,11 @@
 package com.android.deskclock.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -28,15 +31,23 @@ import android.text.TextUtils;
 
 import com.android.deskclock.Log;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+
 public class ClockProvider extends ContentProvider {
     private ClockDatabaseHelper mOpenHelper;
 
+    // Table uris changed by the batch applied on the current thread, null outside of a batch.
+    private final ThreadLocal<HashSet<Uri>> mBatchChangedUris = new ThreadLocal<HashSet<Uri>>();
+
     private static final int ALARMS = 1;
     private static final int ALARMS_ID = 2;
     private static final int INSTANCES = 3;
     private static final int INSTANCES_ID = 4;
     private static final int CITIES = 5;
     private static final int CITIES_ID = 6;
+    private static final int TIMERS = 7;
+    private static final int TIMERS_ID = 8;
 
     private static final UriMatcher sURLMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     static {
@@ -46,6 +57,8 @@ public class ClockProvider extends ContentProvider {
         sURLMatcher.addURI(ClockContract.AUTHORITY, "instances/#", INSTANCES_ID);
         sURLMatcher.addURI(ClockContract.AUTHORITY, "cities", CITIES);
         sURLMatcher.addURI(ClockContract.AUTHORITY, "cities/*", CITIES_ID);
+        sURLMatcher.addURI(ClockContract.AUTHORITY, "timers", TIMERS);
+        sURLMatcher.addURI(ClockContract.AUTHORITY, "timers/#", TIMERS_ID);
     }
 
     public ClockProvider() {
@@ -89,13 +102,22 @@ public class ClockProvider extends ContentProvider {
                 qb.appendWhere(ClockContract.CitiesColumns.CITY_ID + "=");
                 qb.appendWhere(uri.getLastPathSegment());
                 break;
+            case TIMERS:
+                qb.setTables(ClockDatabaseHelper.TIMERS_TABLE_NAME);
+                break;
+            case TIMERS_ID:
+                qb.setTables(ClockDatabaseHelper.TIMERS_TABLE_NAME);
+                qb.appendWhere(ClockContract.TimersColumns._ID + "=");
+                qb.appendWhere(uri.getLastPathSegment());
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URL " + uri);
         }
 
+        String limit = uri.getQueryParameter(ClockContract.QUERY_PARAMETER_LIMIT);
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         Cursor ret = qb.query(db, projectionIn, selection, selectionArgs,
-                              null, null, sort);
+                              null, null, sort, limit);
 
         if (ret == null) {
             Log.e("Alarms.query: failed");
@@ -122,6 +144,10 @@ public class ClockProvider extends ContentProvider {
                 return "vnd.android.cursor.dir/cities";
             case CITIES_ID:
                 return "vnd.android.cursor.item/cities";
+            case TIMERS:
+                return "vnd.android.cursor.dir/timers";
+            case TIMERS_ID:
+                return "vnd.android.cursor.item/timers";
             default:
                 throw new IllegalArgumentException("Unknown URL");
         }
@@ -151,19 +177,27 @@ public class ClockProvider extends ContentProvider {
                         ClockContract.CitiesColumns.CITY_ID + "=" + alarmId,
                         null);
                 break;
+            case TIMERS_ID:
+                alarmId = uri.getLastPathSegment();
+                count = db.update(ClockDatabaseHelper.TIMERS_TABLE_NAME, values,
+                        ClockContract.TimersColumns._ID + "=" + alarmId,
+                        null);
+                break;
             default: {
                 throw new UnsupportedOperationException(
                         "Cannot update URL: " + uri);
             }
         }
         if (Log.LOGV) Log.v("*** notifyChange() id: " + alarmId + " url " + uri);
-        getContext().getContentResolver().notifyChange(uri, null);
+        invalidateCache(uri, false);
+        notifyChange(uri);
         return count;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
         long rowId;
+        Uri contentUri = ClockContract.AlarmsColumns.CONTENT_URI;
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         switch (sURLMatcher.match(uri)) {
             case ALARMS:
@@ -175,12 +209,18 @@ public class ClockProvider extends ContentProvider {
             case CITIES:
                 rowId = db.insert(ClockDatabaseHelper.CITIES_TABLE_NAME, null, initialValues);
                 break;
+            case TIMERS:
+                // Timers bring their own id, saving one that exists replaces its row
+                rowId = db.insertWithOnConflict(ClockDatabaseHelper.TIMERS_TABLE_NAME, null,
+                        initialValues, SQLiteDatabase.CONFLICT_REPLACE);
+                contentUri = ClockContract.TimersColumns.CONTENT_URI;
+                break;
             default:
                 throw new IllegalArgumentException("Cannot insert from URL: " + uri);
         }
 
-        Uri uriResult = ContentUris.withAppendedId(ClockContract.AlarmsColumns.CONTENT_URI, rowId);
-        getContext().getContentResolver().notifyChange(uriResult, null);
+        Uri uriResult = ContentUris.withAppendedId(contentUri, rowId);
+        notifyChange(uriResult);
         return uriResult;
     }
 
@@ -229,11 +269,140 @@ public class ClockProvider extends ContentProvider {
                 }
                 count = db.delete(ClockDatabaseHelper.CITIES_TABLE_NAME, where, whereArgs);
                 break;
+            case TIMERS:
+                count = db.delete(ClockDatabaseHelper.TIMERS_TABLE_NAME, where, whereArgs);
+                break;
+            case TIMERS_ID:
+                primaryKey = uri.getLastPathSegment();
+                if (TextUtils.isEmpty(where)) {
+                    where = ClockContract.TimersColumns._ID + "=" + primaryKey;
+                } else {
+                    where = ClockContract.TimersColumns._ID + "=" + primaryKey +
+                            " AND (" + where + ")";
+                }
+                count = db.delete(ClockDatabaseHelper.TIMERS_TABLE_NAME, where, whereArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot delete from URL: " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        invalidateCache(uri, true);
+        notifyChange(uri);
         return count;
     }
+
+    /**
+     * Apply all operations in a single database transaction. Change notifications are held
+     * back until the transaction is committed and sent once per changed table.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        HashSet<Uri> changedUris = new HashSet<Uri>();
+        ContentProviderResult[] results;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mBatchChangedUris.set(changedUris);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChangedUris.set(null);
+        }
+
+        notifyBatchChanges(changedUris);
+        return results;
+    }
+
+    /**
+     * Insert all rows in a single database transaction with a single change notification.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        HashSet<Uri> changedUris = new HashSet<Uri>();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mBatchChangedUris.set(changedUris);
+        db.beginTransaction();
+        try {
+            for (ContentValues rowValues : values) {
+                insert(uri, rowValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChangedUris.set(null);
+        }
+
+        notifyBatchChanges(changedUris);
+        return values.length;
+    }
+
+    /**
+     * Notify observers of a change, or record it if a batch is being applied on this thread.
+     */
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null) {
+            // Observers of a table uri also hear about its rows, so one notification per
+            // table covers the whole batch.
+            batchChangedUris.add(getTableUri(uri));
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Drop the cached rows affected by a change to uri. This happens as soon as the row is
+     * written, before the change notification which may be held back by a batch.
+     */
+    private static void invalidateCache(Uri uri, boolean deleted) {
+        switch (sURLMatcher.match(uri)) {
+            case ALARMS:
+                AlarmCache.invalidateAlarms();
+                if (deleted) {
+                    // Deleting alarms cascades to their instances
+                    AlarmCache.invalidateInstances();
+                }
+                break;
+            case ALARMS_ID:
+                AlarmCache.invalidateAlarm(ContentUris.parseId(uri));
+                if (deleted) {
+                    AlarmCache.invalidateInstances();
+                }
+                break;
+            case INSTANCES:
+                AlarmCache.invalidateInstances();
+                break;
+            case INSTANCES_ID:
+                AlarmCache.invalidateInstance(ContentUris.parseId(uri));
+                break;
+        }
+    }
+
+    private void notifyBatchChanges(HashSet<Uri> changedUris) {
+        for (Uri uri : changedUris) {
+            if (Log.LOGV) Log.v("*** notifyChange() for batch url " + uri);
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private static Uri getTableUri(Uri uri) {
+        switch (sURLMatcher.match(uri)) {
+            case ALARMS:
+            case ALARMS_ID:
+                return ClockContract.AlarmsColumns.CONTENT_URI;
+            case INSTANCES:
+            case INSTANCES_ID:
+                return ClockContract.InstancesColumns.CONTENT_URI;
+            case CITIES:
+            case CITIES_ID:
+                return ClockContract.CitiesColumns.CONTENT_URI;
+            case TIMERS:
+            case TIMERS_ID:
+                return ClockContract.TimersColumns.CONTENT_URI;
+            default:
+                return uri;
+        }
+    }
 }
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.stopwatch;
+
+/**
+ * Statistics of the completed lap times: best and worst lap, mean, standard deviation and the
+ * mean of the last few laps. They are updated in O(1) as each lap is added, using Welford's
+ * method for the mean and variance and a ring of the last laps for the moving average, so the
+ * laps are never scanned again.
+ */
+public final class LapStats {
+    /** Number of laps in the moving average, unless another window is given. */
+    public static final int DEFAULT_WINDOW = 5;
+
+    private int mCount;
+    private double mMean;
+    // Sum of the squared differences from the mean
+    private double mSquares;
+
+    private int mBestLap = -1;
+    private long mBestLapTime;
+    private int mWorstLap = -1;
+    private long mWorstLapTime;
+
+    // Last lap times, mWindowSum is their sum
+    private final long[] mWindow;
+    private long mWindowSum;
+
+    public LapStats(int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Bad moving average window: " + window);
+        }
+        mWindow = new long[window];
+    }
+
+    /**
+     * Copy stats, so they can be read while the original keeps changing.
+     */
+    public LapStats(LapStats stats) {
+        mCount = stats.mCount;
+        mMean = stats.mMean;
+        mSquares = stats.mSquares;
+        mBestLap = stats.mBestLap;
+        mBestLapTime = stats.mBestLapTime;
+        mWorstLap = stats.mWorstLap;
+        mWorstLapTime = stats.mWorstLapTime;
+        mWindow = stats.mWindow.clone();
+        mWindowSum = stats.mWindowSum;
+    }
+
+    /**
+     * Add the next completed lap.
+     *
+     * @param lapTime length of the lap
+     */
+    public void add(long lapTime) {
+        final int lap = mCount++;
+
+        final double delta = lapTime - mMean;
+        mMean += delta / mCount;
+        mSquares += delta * (lapTime - mMean);
+
+        if (mBestLap == -1 || lapTime < mBestLapTime) {
+            mBestLap = lap;
+            mBestLapTime = lapTime;
+        }
+        if (mWorstLap == -1 || lapTime > mWorstLapTime) {
+            mWorstLap = lap;
+            mWorstLapTime = lapTime;
+        }
+
+        final int slot = lap % mWindow.length;
+        if (lap >= mWindow.length) {
+            mWindowSum -= mWindow[slot];
+        }
+        mWindow[slot] = lapTime;
+        mWindowSum += lapTime;
+    }
+
+    public void clear() {
+        mCount = 0;
+        mMean = mSquares = 0;
+        mBestLap = mWorstLap = -1;
+        mBestLapTime = mWorstLapTime = 0;
+        mWindowSum = 0;
+    }
+
+    /**
+     * @return number of laps added
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return index of the shortest lap, the first one on a tie, or -1 if there is no lap
+     */
+    public int getBestLap() {
+        return mBestLap;
+    }
+
+    /**
+     * @return length of the shortest lap, 0 if there is no lap
+     */
+    public long getBestLapTime() {
+        return mBestLapTime;
+    }
+
+    /**
+     * @return index of the longest lap, the first one on a tie, or -1 if there is no lap
+     */
+    public int getWorstLap() {
+        return mWorstLap;
+    }
+
+    /**
+     * @return length of the longest lap, 0 if there is no lap
+     */
+    public long getWorstLapTime() {
+        return mWorstLapTime;
+    }
+
+    /**
+     * @return mean lap length, 0 if there is no lap
+     */
+    public long getMeanLapTime() {
+        return Math.round(mMean);
+    }
+
+    /**
+     * @return sample standard deviation of the lap lengths, 0 with less than two laps
+     */
+    public long getStandardDeviation() {
+        return mCount < 2 ? 0 : Math.round(Math.sqrt(mSquares / (mCount - 1)));
+    }
+
+    /**
+     * @return number of laps in the moving average, at most the window size
+     */
+    public int getMovingAverageCount() {
+        return Math.min(mCount, mWindow.length);
+    }
+
+    /**
+     * @return mean length of the last laps, 0 if there is no lap
+     */
+    public long getMovingAverage() {
+        final int count = getMovingAverageCount();
+        return count == 0 ? 0 : mWindowSum / count;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.stopwatch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import com.android.deskclock.AsyncHandler;
+import com.android.deskclock.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The completed laps of the stopwatch, shared by the stopwatch fragment and service. Each lap
+ * is kept as the total stopwatch time when it was completed, in nanoseconds, oldest first, in a
+ * growable long array, so there is no limit on the number of laps and no object per lap. The
+ * lap that is running is not stored: it goes from the last completed lap to the current
+ * stopwatch time. Statistics of the laps are kept up to date as laps are added, see
+ * {@link LapStats}.
+ *
+ * Laps are only ever added or all cleared, so they are saved in a journal: a header followed by
+ * one fixed-size record per lap, appended in the background with a single write per batch of
+ * laps. The journal is synced once the writes catch up, so a burst of laps costs one sync. When
+ * the journal is read back, records after the first one that is cut short or does not follow
+ * the previous lap are dropped, which recovers from a process dying in the middle of a write.
+ *
+ * Replaying the journal reads the whole file, 20 bytes per lap, so it is done in the background
+ * when the store is first used. Until it is done, the store methods block, except
+ * {@link #isLoaded} and {@link #runWhenLoaded}, which let the UI show the laps once they are
+ * ready without waiting on the main thread.
+ */
+public final class LapStore {
+    private static final String FILE_NAME = "stopwatch_laps";
+
+    private static final int JOURNAL_MAGIC = 0x4c415053; // "LAPS"
+    private static final int JOURNAL_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4;
+
+    // Lap index, total time at the end of the lap in nanoseconds, and wall time of the lap
+    private static final int RECORD_SIZE = 4 + 8 + 8;
+
+    // Laps saved in shared preferences by older versions, one key per lap. The last lap was the
+    // one running.
+    private static final String PREF_LAP_NUM = "sw_lap_num";
+    private static final String PREF_LAP_TIME = "sw_lap_time_";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static LapStore sInstance;
+
+    private final File mFile;
+
+    // Total time at the end of each completed lap and its wall time, oldest first.
+    // Guarded by this.
+    private long[] mTotalTimes = new long[INITIAL_CAPACITY];
+    private long[] mWallTimes = new long[INITIAL_CAPACITY];
+    private int mCount;
+    private final LapStats mStats = new LapStats(LapStats.DEFAULT_WINDOW);
+
+    // Records of the laps not written yet, and whether the journal must be emptied first.
+    // Guarded by this.
+    private final ByteArrayOutputStream mPendingRecords = new ByteArrayOutputStream();
+    private boolean mTruncatePending;
+    private boolean mWriteScheduled;
+
+    // Whether the laps have been loaded, and what to run on the main thread once they are.
+    // Guarded by this.
+    private boolean mLoaded;
+    private final ArrayList<Runnable> mLoadedCallbacks = new ArrayList<Runnable>();
+
+    /**
+     * Get the laps, starting to replay their journal in the background on first use.
+     */
+    public static synchronized LapStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LapStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LapStore(final Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        AsyncHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(context);
+            }
+        });
+    }
+
+    private synchronized void load(Context context) {
+        if (mFile.exists()) {
+            readJournal();
+        } else {
+            copyLapsFromSharedPrefs(PreferenceManager.getDefaultSharedPreferences(context));
+        }
+        mLoaded = true;
+        notifyAll();
+
+        if (!mLoadedCallbacks.isEmpty()) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            for (Runnable r : mLoadedCallbacks) {
+                handler.post(r);
+            }
+            mLoadedCallbacks.clear();
+        }
+    }
+
+    /**
+     * @return true if the laps are loaded, so the other methods do not block
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Run r on the main thread once the laps are loaded. If they already are, r is posted
+     * right away.
+     */
+    public synchronized void runWhenLoaded(Runnable r) {
+        if (mLoaded) {
+            new Handler(Looper.getMainLooper()).post(r);
+        } else {
+            mLoadedCallbacks.add(r);
+        }
+    }
+
+    private void waitForLoadLocked() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of completed laps
+     */
+    public synchronized int getCount() {
+        waitForLoadLocked();
+        return mCount;
+    }
+
+    /**
+     * @param lap index of a completed lap, 0 is the oldest
+     * @return total stopwatch time at the end of the lap
+     */
+    public synchronized long getTotalTime(int lap) {
+        waitForLoadLocked();
+        return mTotalTimes[lap];
+    }
+
+    /**
+     * @param lap index of a completed lap, 0 is the oldest
+     * @return length of the lap
+     */
+    public synchronized long getLapTime(int lap) {
+        waitForLoadLocked();
+        return getLapTimeLocked(lap);
+    }
+
+    private long getLapTimeLocked(int lap) {
+        return lap == 0 ? mTotalTimes[0] : mTotalTimes[lap] - mTotalTimes[lap - 1];
+    }
+
+    /**
+     * @return total stopwatch time at the end of the last completed lap, 0 if there is none
+     */
+    public synchronized long getLastTotalTime() {
+        waitForLoadLocked();
+        return getLastTotalTimeLocked();
+    }
+
+    private long getLastTotalTimeLocked() {
+        return mCount == 0 ? 0 : mTotalTimes[mCount - 1];
+    }
+
+    /**
+     * @return length of the longest completed lap, 0 if there is none
+     */
+    public synchronized long getMaxLapTime() {
+        waitForLoadLocked();
+        return mStats.getWorstLapTime();
+    }
+
+    /**
+     * @return statistics of the completed laps, as of now
+     */
+    public synchronized LapStats getStats() {
+        waitForLoadLocked();
+        return new LapStats(mStats);
+    }
+
+    /**
+     * Get the lap lengths as they are shared: newest first, starting with the running lap.
+     *
+     * @param currentTotalTime current stopwatch time, where the running lap ends
+     * @return lap lengths, or null if there is no completed lap
+     */
+    public synchronized long[] getLapTimes(long currentTotalTime) {
+        waitForLoadLocked();
+        if (mCount == 0) {
+            return null;
+        }
+        final long[] lapTimes = new long[mCount + 1];
+        lapTimes[0] = currentTotalTime - mTotalTimes[mCount - 1];
+        for (int i = 1; i <= mCount; i++) {
+            lapTimes[i] = getLapTimeLocked(mCount - i);
+        }
+        return lapTimes;
+    }
+
+    /**
+     * Complete the running lap.
+     *
+     * @param totalTime stopwatch time at the end of the lap
+     */
+    public synchronized void addLap(long totalTime) {
+        waitForLoadLocked();
+        addLapLocked(totalTime, System.currentTimeMillis());
+        writeRecordLocked(mCount - 1);
+        scheduleWriteLocked();
+    }
+
+    private void addLapLocked(long totalTime, long wallTime) {
+        if (mCount == mTotalTimes.length) {
+            mTotalTimes = Arrays.copyOf(mTotalTimes, mCount * 2);
+            mWallTimes = Arrays.copyOf(mWallTimes, mCount * 2);
+        }
+        mTotalTimes[mCount] = totalTime;
+        mWallTimes[mCount] = wallTime;
+        mCount++;
+        mStats.add(getLapTimeLocked(mCount - 1));
+    }
+
+    private void writeRecordLocked(int lap) {
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(lap);
+        record.putLong(mTotalTimes[lap]);
+        record.putLong(mWallTimes[lap]);
+        mPendingRecords.write(record.array(), 0, RECORD_SIZE);
+    }
+
+    /**
+     * Remove every lap.
+     */
+    public synchronized void clear() {
+        waitForLoadLocked();
+        if (mCount == 0) {
+            return;
+        }
+        mTotalTimes = new long[INITIAL_CAPACITY];
+        mWallTimes = new long[INITIAL_CAPACITY];
+        mCount = 0;
+        mStats.clear();
+        mPendingRecords.reset();
+        mTruncatePending = true;
+        scheduleWriteLocked();
+    }
+
+    private void scheduleWriteLocked() {
+        if (mWriteScheduled) {
+            return;
+        }
+        mWriteScheduled = true;
+        AsyncHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                writePendingLaps();
+            }
+        });
+    }
+
+    /**
+     * Write the pending records until there are none left, then sync the journal once. Laps
+     * added while a batch is being written go into the next batch. A clear empties the journal
+     * before the laps added after it are written. If a write fails, the journal is rewritten
+     * from every lap on the next write, so it never has a hole or a partial record.
+     */
+    private void writePendingLaps() {
+        FileOutputStream out = null;
+        boolean synced = true;
+        try {
+            while (true) {
+                final boolean truncate;
+                final byte[] records;
+                synchronized (this) {
+                    truncate = mTruncatePending;
+                    records = mPendingRecords.toByteArray();
+                    mPendingRecords.reset();
+                    mTruncatePending = false;
+
+                    if (!truncate && records.length == 0 && synced) {
+                        mWriteScheduled = false;
+                        return;
+                    }
+                }
+
+                if (truncate || records.length > 0) {
+                    if (truncate && out != null) {
+                        out.close();
+                        out = null;
+                    }
+                    if (out == null) {
+                        out = openJournal(truncate);
+                    }
+                    if (records.length > 0) {
+                        out.write(records);
+                    }
+                    synced = false;
+                } else {
+                    // Caught up, one sync covers every batch written since the last one
+                    out.getFD().sync();
+                    synced = true;
+                }
+            }
+        } catch (IOException e) {
+            Log.e("Could not write the stopwatch laps", e);
+            synchronized (this) {
+                mPendingRecords.reset();
+                for (int i = 0; i < mCount; i++) {
+                    writeRecordLocked(i);
+                }
+                mTruncatePending = true;
+                mWriteScheduled = false;
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e("Could not write the stopwatch laps", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the journal for appending, with a header if it is new or emptied.
+     */
+    private FileOutputStream openJournal(boolean truncate) throws IOException {
+        final boolean empty = truncate || mFile.length() < HEADER_SIZE;
+        final FileOutputStream out = new FileOutputStream(mFile, !empty);
+        if (empty) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(JOURNAL_MAGIC);
+            header.putInt(JOURNAL_VERSION);
+            out.write(header.array());
+        }
+        return out;
+    }
+
+    /**
+     * Replay the journal, dropping the records after the first one that is cut short or does
+     * not follow the previous lap, and cutting them from the file so new laps line up.
+     */
+    private void readJournal() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            final long length = file.length();
+            if (length < HEADER_SIZE || file.readInt() != JOURNAL_MAGIC
+                    || file.readInt() != JOURNAL_VERSION) {
+                Log.w("Discarding stopwatch lap journal with a bad header");
+                file.setLength(0);
+                return;
+            }
+
+            final byte[] data = new byte[(int) (length - HEADER_SIZE)];
+            file.readFully(data);
+            final ByteBuffer records = ByteBuffer.wrap(data);
+            final int count = data.length / RECORD_SIZE;
+            mTotalTimes = new long[Math.max(INITIAL_CAPACITY, count)];
+            mWallTimes = new long[mTotalTimes.length];
+            while (mCount < count) {
+                final int lap = records.getInt();
+                final long totalTime = records.getLong();
+                final long wallTime = records.getLong();
+                if (lap != mCount || totalTime < getLastTotalTimeLocked()) {
+                    break;
+                }
+                addLapLocked(totalTime, wallTime);
+            }
+
+            final long validLength = HEADER_SIZE + (long) mCount * RECORD_SIZE;
+            if (validLength < length) {
+                Log.w("Dropping " + (length - validLength) + " bytes of stopwatch lap journal");
+                file.setLength(validLength);
+            }
+        } catch (IOException e) {
+            Log.e("Could not read the stopwatch laps", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.e("Could not read the stopwatch laps", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the laps saved in shared preferences by older versions to the journal.
+     */
+    private void copyLapsFromSharedPrefs(SharedPreferences prefs) {
+        final int lapNum = prefs.getInt(PREF_LAP_NUM, 0);
+        if (lapNum == 0) {
+            return;
+        }
+
+        final SharedPreferences.Editor editor = prefs.edit();
+        // The last lap is the running one, it is not stored anymore
+        for (int i = 1; i <= lapNum; i++) {
+            final String key = PREF_LAP_TIME + Integer.toString(i);
+            if (i < lapNum) {
+                addLapLocked(prefs.getLong(key, 0) * Stopwatches.NANOS_PER_MILLI,
+                        System.currentTimeMillis());
+                writeRecordLocked(mCount - 1);
+            }
+            editor.remove(key);
+        }
+        editor.remove(PREF_LAP_NUM);
+        editor.apply();
+        scheduleWriteLocked();
+    }
+}
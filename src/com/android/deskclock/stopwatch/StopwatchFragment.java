@@ -20,6 +20,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.view.animation.Animation;
+import android.view.animation.LayoutAnimationController;
 import android.view.animation.TranslateAnimation;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
@@ -68,51 +69,65 @@ public class StopwatchFragment extends DeskClockFragment
     private View mEndSpace;
     private boolean mSpacersUsed;
 
-    // Used for calculating the time from the start taking into account the pause times
+    // Used for calculating the time from the start taking into account the pause times, in
+    // nanoseconds of Stopwatches.getTimeNow()
     long mStartTime = 0;
     long mAccumulatedTime = 0;
 
-    // Lap information
-    class Lap {
-
-        Lap (long time, long total) {
-            mLapTime = time;
-            mTotalTime = total;
-        }
-        public long mLapTime;
-        public long mTotalTime;
-
-        public void updateView() {
-            View lapInfo = mLapsList.findViewWithTag(this);
-            if (lapInfo != null) {
-                mLapsAdapter.setTimeText(lapInfo, this);
-            }
-        }
-    }
-
-    // Adapter for the ListView that shows the lap times.
+    // Adapter for the ListView that shows the lap times. The first row is the running lap, the
+    // others are the completed laps of the lap store, newest first. Rows are identified by their
+    // lap number, which stays the same as new laps push them down the list.
     class LapsListAdapter extends BaseAdapter {
 
-        ArrayList<Lap> mLaps = new ArrayList<Lap>();
+        private final LapStore mLapStore;
         private final LayoutInflater mInflater;
         private final int mBackgroundColor;
+        private final int mLapColor;
+        private final int mBestLapColor;
+        private final int mWorstLapColor;
         private final String[] mFormats;
         private final String[] mLapFormatSet;
         // Size of this array must match the size of formats
         private final long[] mThresholds = {
-                10 * DateUtils.MINUTE_IN_MILLIS, // < 10 minutes
-                DateUtils.HOUR_IN_MILLIS, // < 1 hour
-                10 * DateUtils.HOUR_IN_MILLIS, // < 10 hours
-                100 * DateUtils.HOUR_IN_MILLIS, // < 100 hours
-                1000 * DateUtils.HOUR_IN_MILLIS // < 1000 hours
+                10 * DateUtils.MINUTE_IN_MILLIS * Stopwatches.NANOS_PER_MILLI, // < 10 minutes
+                DateUtils.HOUR_IN_MILLIS * Stopwatches.NANOS_PER_MILLI, // < 1 hour
+                10 * DateUtils.HOUR_IN_MILLIS * Stopwatches.NANOS_PER_MILLI, // < 10 hours
+                100 * DateUtils.HOUR_IN_MILLIS * Stopwatches.NANOS_PER_MILLI, // < 100 hours
+                1000 * DateUtils.HOUR_IN_MILLIS * Stopwatches.NANOS_PER_MILLI // < 1000 hours
         };
         private int mLapIndex = 0;
         private int mTotalIndex = 0;
         private String mLapFormat;
+        // Total time at the end of the running lap
+        private long mCurrentTotalTime;
+        // Statistics of the completed laps, to highlight the best and worst ones
+        private LapStats mStats;
+        // Number of completed laps at the last refresh of the rows
+        private int mShownLapCount;
+        // Whether the lap store is loaded. Until then no lap is shown, so the main thread never
+        // waits for the laps to be read.
+        private boolean mLoaded;
 
         public LapsListAdapter(Context context) {
+            mLapStore = LapStore.getInstance(context);
+            mLoaded = mLapStore.isLoaded();
+            if (!mLoaded) {
+                mLapStore.runWhenLoaded(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLoaded = true;
+                        if (mLapsAdapter == LapsListAdapter.this && isResumed()) {
+                            reloadLaps();
+                        }
+                    }
+                });
+            }
             mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             mBackgroundColor = getResources().getColor(R.color.blackish);
+            mLapColor = getResources().getColor(R.color.clock_gray);
+            mBestLapColor = getResources().getColor(R.color.clock_blue);
+            mWorstLapColor = getResources().getColor(R.color.clock_red);
+            mStats = mLoaded ? mLapStore.getStats() : new LapStats(LapStats.DEFAULT_WINDOW);
             mFormats = context.getResources().getStringArray(R.array.stopwatch_format_set);
             mLapFormatSet = context.getResources().getStringArray(R.array.sw_lap_number_set);
             updateLapFormat();
@@ -120,15 +135,26 @@ public class StopwatchFragment extends DeskClockFragment
 
         @Override
         public long getItemId(int position) {
-            return position;
+            return getCount() - position;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public void notifyDataSetChanged() {
+            mShownLapCount = mLoaded ? mLapStore.getCount() : 0;
+            super.notifyDataSetChanged();
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            if (mLaps.size() == 0 || position >= mLaps.size()) {
+            final int size = getCount();
+            if (position >= size) {
                 return null;
             }
-            Lap lap = getItem(position);
             View lapInfo;
             if (convertView != null) {
                 lapInfo = convertView;
@@ -136,37 +162,70 @@ public class StopwatchFragment extends DeskClockFragment
                 lapInfo = mInflater.inflate(R.layout.lap_view, parent, false);
                 lapInfo.setBackgroundColor(mBackgroundColor);
             }
-            lapInfo.setTag(lap);
             TextView count = (TextView)lapInfo.findViewById(R.id.lap_number);
-            count.setText(String.format(mLapFormat, mLaps.size() - position).toUpperCase());
-            setTimeText(lapInfo, lap);
+            count.setText(String.format(mLapFormat, size - position).toUpperCase());
+            setTimeText(lapInfo, position);
 
             return lapInfo;
         }
 
-        protected void setTimeText(View lapInfo, Lap lap) {
+        protected void setTimeText(View lapInfo, int position) {
             TextView lapTime = (TextView)lapInfo.findViewById(R.id.lap_time);
             TextView totalTime = (TextView)lapInfo.findViewById(R.id.lap_total);
-            lapTime.setText(Stopwatches.formatTimeText(lap.mLapTime, mFormats[mLapIndex]));
-            totalTime.setText(Stopwatches.formatTimeText(lap.mTotalTime, mFormats[mTotalIndex]));
+            lapTime.setText(Stopwatches.formatTimeText(getLapTime(position), mFormats[mLapIndex]));
+            lapTime.setTextColor(getLapColor(position));
+            totalTime.setText(Stopwatches.formatTimeText(getTotalTime(position),
+                    mFormats[mTotalIndex]));
         }
 
         @Override
         public int getCount() {
-            return mLaps.size();
+            if (!mLoaded) {
+                return 0;
+            }
+            // Once there is a completed lap, the running lap is shown too
+            final int laps = mLapStore.getCount();
+            return laps == 0 ? 0 : laps + 1;
         }
 
         @Override
-        public Lap getItem(int position) {
-            if (mLaps.size() == 0 || position >= mLaps.size()) {
+        public Long getItem(int position) {
+            if (position >= getCount()) {
                 return null;
             }
-            return mLaps.get(position);
+            return getTotalTime(position);
+        }
+
+        private int getLapColor(int position) {
+            // The running lap is not ranked, and a single lap is both the best and the worst
+            if (position == 0 || mStats.getCount() < 2) {
+                return mLapColor;
+            }
+            final int lap = mLapStore.getCount() - position;
+            if (lap == mStats.getBestLap()) {
+                return mBestLapColor;
+            } else if (lap == mStats.getWorstLap()) {
+                return mWorstLapColor;
+            }
+            return mLapColor;
+        }
+
+        public long getLapTime(int position) {
+            if (position == 0) {
+                return mCurrentTotalTime - mLapStore.getLastTotalTime();
+            }
+            return mLapStore.getLapTime(mLapStore.getCount() - position);
+        }
+
+        private long getTotalTime(int position) {
+            if (position == 0) {
+                return mCurrentTotalTime;
+            }
+            return mLapStore.getTotalTime(mLapStore.getCount() - position);
         }
 
         private void updateLapFormat() {
-            // Note Stopwatches.MAX_LAPS < 100
-            mLapFormat = mLapFormatSet[mLaps.size() < 10 ? 0 : 1];
+            mLapFormat = mLapFormatSet[getCount() < 10 ? 0 : 1];
         }
 
         private void resetTimeFormats() {
@@ -179,68 +238,86 @@ public class StopwatchFragment extends DeskClockFragment
          * print. As the total or lap time exceed the limit of that format, this code updates
          * the format used for the total and/or lap times.
          *
-         * @param lap to measure
+         * @param lapTime length of the lap to measure
+         * @param totalTime total time at the end of the lap to measure
          * @return true if this lap exceeded either threshold and a format was updated.
          */
-        public boolean updateTimeFormats(Lap lap) {
+        public boolean updateTimeFormats(long lapTime, long totalTime) {
             boolean formatChanged = false;
-            while (mLapIndex + 1 < mThresholds.length && lap.mLapTime >= mThresholds[mLapIndex]) {
+            while (mLapIndex + 1 < mThresholds.length && lapTime >= mThresholds[mLapIndex]) {
                 mLapIndex++;
                 formatChanged = true;
             }
-            while (mTotalIndex + 1 < mThresholds.length && 
-                lap.mTotalTime >= mThresholds[mTotalIndex]) {
+            while (mTotalIndex + 1 < mThresholds.length &&
+                totalTime >= mThresholds[mTotalIndex]) {
                 mTotalIndex++;
                 formatChanged = true;
             }
             return formatChanged;
         }
 
-        public void addLap(Lap l) {
-            mLaps.add(0, l);
+        /**
+         * Move the end of the running lap.
+         *
+         * @return true if the running lap caused a format change, so every row needs a refresh
+         */
+        public boolean setCurrentTotalTime(long totalTime) {
+            mCurrentTotalTime = totalTime;
+            return getCount() > 0 && updateTimeFormats(getLapTime(0), totalTime);
+        }
+
+        /**
+         * Complete the running lap and start a new one.
+         */
+        public void addLap(long totalTime) {
+            mLapStore.addLap(totalTime);
+            mLoaded = true;
+            mStats = mLapStore.getStats();
+            mCurrentTotalTime = totalTime;
+            updateTimeFormats(mLapStore.getLapTime(mLapStore.getCount() - 1), totalTime);
+            updateLapFormat();
             // for efficiency caller also calls notifyDataSetChanged()
         }
 
         public void clearLaps() {
-            mLaps.clear();
+            mLapStore.clear();
+            mLoaded = true;
+            mStats = mLapStore.getStats();
+            mCurrentTotalTime = 0;
             updateLapFormat();
             resetTimeFormats();
             notifyDataSetChanged();
         }
 
-        // Helper function used to get the lap data to be stored in the activity's bundle
-        public long [] getLapTimes() {
-            int size = mLaps.size();
-            if (size == 0) {
-                return null;
-            }
-            long [] laps = new long[size];
-            for (int i = 0; i < size; i ++) {
-                laps[i] = mLaps.get(i).mTotalTime;
-            }
-            return laps;
-        }
-
-        // Helper function to restore adapter's data from the activity's bundle
-        public void setLapTimes(long [] laps) {
-            if (laps == null || laps.length == 0) {
-                return;
-            }
-
-            int size = laps.length;
-            mLaps.clear();
-            for (long lap : laps) {
-                mLaps.add(new Lap(lap, 0));
+        /**
+         * Pick up the laps of the lap store, which the service may have changed.
+         *
+         * @param currentTotalTime current stopwatch time, where the running lap ends
+         * @return true if there is any lap to show
+         */
+        public boolean reloadLaps(long currentTotalTime) {
+            if (!mLoaded) {
+                mCurrentTotalTime = currentTotalTime;
+                return false;
             }
-            long totalTime = 0;
-            for (int i = size -1; i >= 0; i --) {
-                totalTime += laps[i];
-                mLaps.get(i).mTotalTime = totalTime;
-                updateTimeFormats(mLaps.get(i));
+            final int lapIndex = mLapIndex;
+            final int totalIndex = mTotalIndex;
+            mCurrentTotalTime = currentTotalTime;
+            mStats = mLapStore.getStats();
+            resetTimeFormats();
+            if (getCount() > 0) {
+                updateTimeFormats(Math.max(mLapStore.getMaxLapTime(), getLapTime(0)),
+                        currentTotalTime);
             }
             updateLapFormat();
-            showLaps();
-            notifyDataSetChanged();
+            // Most preference changes leave the laps alone, only the running lap needs a refresh
+            if (mLapStore.getCount() != mShownLapCount || lapIndex != mLapIndex
+                    || totalIndex != mTotalIndex) {
+                notifyDataSetChanged();
+            } else {
+                updateCurrentLapView();
+            }
+            return getCount() > 0;
         }
     }
 
@@ -250,7 +327,7 @@ public class StopwatchFragment extends DeskClockFragment
     }
 
     private void rightButtonAction() {
-        long time = Utils.getTimeNow();
+        long time = Stopwatches.getTimeNow();
         Context context = getActivity().getApplicationContext();
         Intent intent = new Intent(context, StopwatchService.class);
         intent.putExtra(Stopwatches.MESSAGE_TIME, time);
@@ -258,7 +335,7 @@ public class StopwatchFragment extends DeskClockFragment
         switch (mState) {
             case Stopwatches.STOPWATCH_RUNNING:
                 // do stop
-                long curTime = Utils.getTimeNow();
+                long curTime = Stopwatches.getTimeNow();
                 mAccumulatedTime += (curTime - mStartTime);
                 doStop();
                 intent.setAction(Stopwatches.STOP_STOPWATCH);
@@ -290,7 +367,7 @@ public class StopwatchFragment extends DeskClockFragment
         mLeftButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                long time = Utils.getTimeNow();
+                long time = Stopwatches.getTimeNow();
                 Context context = getActivity().getApplicationContext();
                 Intent intent = new Intent(context, StopwatchService.class);
                 intent.putExtra(Stopwatches.MESSAGE_TIME, time);
@@ -374,54 +451,36 @@ public class StopwatchFragment extends DeskClockFragment
             @Override
             public void startTransition(LayoutTransition transition, ViewGroup container,
                                         View view, int transitionType) {
-                if (view == mLapsList) {
-                    if (transitionType == LayoutTransition.DISAPPEARING) {
-                        if (DEBUG) Log.v("StopwatchFragment.start laps-list disappearing");
-                        boolean shiftX = view.getResources().getConfiguration().orientation
-                                == Configuration.ORIENTATION_LANDSCAPE;
-                        int first = mLapsList.getFirstVisiblePosition();
-                        int last = mLapsList.getLastVisiblePosition();
-                        // Ensure index range will not cause a divide by zero
-                        if (last < first) {
-                            last = first;
-                        }
-                        long duration = transition.getDuration(LayoutTransition.DISAPPEARING);
-                        long offset = duration / (last - first + 1) / 5;
-                        for (int visibleIndex = first; visibleIndex <= last; visibleIndex++) {
-                            View lapView = mLapsList.getChildAt(visibleIndex - first);
-                            if (lapView != null) {
-                                float toXValue = shiftX ? 1.0f * (visibleIndex - first + 1) : 0;
-                                float toYValue = shiftX ? 0 : 4.0f * (visibleIndex - first + 1);
-                                        TranslateAnimation animation = new TranslateAnimation(
-                                        Animation.RELATIVE_TO_SELF, 0,
-                                        Animation.RELATIVE_TO_SELF, toXValue,
-                                        Animation.RELATIVE_TO_SELF, 0,
-                                        Animation.RELATIVE_TO_SELF, toYValue);
-                                animation.setStartOffset((last - visibleIndex) * offset);
-                                animation.setDuration(duration);
-                                lapView.startAnimation(animation);
-                            }
-                        }
-                    }
+                if (view == mLapsList && transitionType == LayoutTransition.DISAPPEARING) {
+                    if (DEBUG) Log.v("StopwatchFragment.start laps-list disappearing");
+                    boolean shiftX = view.getResources().getConfiguration().orientation
+                            == Configuration.ORIENTATION_LANDSCAPE;
+                    // Slide the rows out of the list one after the other, starting from the
+                    // bottom one, and finish with the transition
+                    int rows = Math.max(1, mLapsList.getChildCount());
+                    float delay = 1.0f / (5 * rows);
+                    long duration = transition.getDuration(LayoutTransition.DISAPPEARING);
+                    Animation animation = new TranslateAnimation(
+                            Animation.RELATIVE_TO_SELF, 0,
+                            Animation.RELATIVE_TO_PARENT, shiftX ? 1.0f : 0,
+                            Animation.RELATIVE_TO_SELF, 0,
+                            Animation.RELATIVE_TO_PARENT, shiftX ? 0 : 1.0f);
+                    animation.setDuration((long) (duration / (1 + delay * (rows - 1))));
+                    LayoutAnimationController controller =
+                            new LayoutAnimationController(animation, delay);
+                    controller.setOrder(LayoutAnimationController.ORDER_REVERSE);
+                    mLapsList.setLayoutAnimation(controller);
+                    mLapsList.startLayoutAnimation();
                 }
             }
 
             @Override
             public void endTransition(LayoutTransition transition, ViewGroup container,
                                       View view, int transitionType) {
-                if (transitionType == LayoutTransition.DISAPPEARING) {
+                if (view == mLapsList && transitionType == LayoutTransition.DISAPPEARING) {
                     if (DEBUG) Log.v("StopwatchFragment.end laps-list disappearing");
-                    int last = mLapsList.getLastVisiblePosition();
-                    for (int visibleIndex = mLapsList.getFirstVisiblePosition();
-                         visibleIndex <= last; visibleIndex++) {
-                        View lapView = mLapsList.getChildAt(visibleIndex);
-                        if (lapView != null) {
-                            Animation animation = lapView.getAnimation();
-                            if (animation != null) {
-                                animation.cancel();
-                            }
-                        }
-                    }
+                    // Don't slide the rows out again when the list is laid out next time
+                    mLapsList.setLayoutAnimation(null);
                 }
             }
         });
@@ -459,13 +518,14 @@ public class StopwatchFragment extends DeskClockFragment
     @Override
     public void onResume() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getActivity());
+        Stopwatches.upgradeSharedPrefs(prefs);
         prefs.registerOnSharedPreferenceChangeListener(this);
         readFromSharedPref(prefs);
         mTime.readFromSharedPref(prefs, "sw");
         mTime.postInvalidate();
 
         setButtons(mState);
-        mTimeText.setTime(mAccumulatedTime, true, true);
+        mTimeText.setTime(Stopwatches.toMillis(mAccumulatedTime), true, true);
         if (mState == Stopwatches.STOPWATCH_RUNNING) {
             acquireWakeLock();
             startUpdateThread();
@@ -524,7 +584,7 @@ public class StopwatchFragment extends DeskClockFragment
         if (DEBUG) Log.v("StopwatchFragment.doStop");
         stopUpdateThread();
         mTime.pauseIntervalAnimation();
-        mTimeText.setTime(mAccumulatedTime, true, true);
+        mTimeText.setTime(Stopwatches.toMillis(mAccumulatedTime), true, true);
         mTimeText.blinkTimeStr(true);
         updateCurrentLap(mAccumulatedTime);
         setButtons(Stopwatches.STOPWATCH_STOPPED);
@@ -560,7 +620,7 @@ public class StopwatchFragment extends DeskClockFragment
         showLaps();
         mTime.stopIntervalAnimation();
         mTime.reset();
-        mTimeText.setTime(mAccumulatedTime, true, true);
+        mTimeText.setTime(Stopwatches.toMillis(mAccumulatedTime), true, true);
         mTimeText.blinkTimeStr(false);
         setButtons(Stopwatches.STOPWATCH_RESET);
         mState = Stopwatches.STOPWATCH_RESET;
@@ -665,30 +725,13 @@ public class StopwatchFragment extends DeskClockFragment
         intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
         intent.putExtra(Intent.EXTRA_SUBJECT,
                 Stopwatches.getShareTitle(getActivity().getApplicationContext()));
+        final LapStore laps = LapStore.getInstance(getActivity());
         intent.putExtra(Intent.EXTRA_TEXT, Stopwatches.buildShareResults(
                 getActivity().getApplicationContext(), mTimeText.getTimeString(),
-                getLapShareTimes(mLapsAdapter.getLapTimes())));
+                laps.getLapTimes(mAccumulatedTime), laps.getStats()));
         return intent;
     }
 
-    /** Turn laps as they would be saved in prefs into format for sharing. **/
-    private long[] getLapShareTimes(long[] input) {
-        if (input == null) {
-            return null;
-        }
-
-        int numLaps = input.length;
-        long[] output = new long[numLaps];
-        long prevLapElapsedTime = 0;
-        for (int lap_i = numLaps - 1; lap_i >= 0; lap_i--) {
-            long lap = input[lap_i];
-            Log.v("lap "+lap_i+": "+lap);
-            output[lap_i] = lap - prevLapElapsedTime;
-            prevLapElapsedTime = lap;
-        }
-        return output;
-    }
-
     /***
      * Update the buttons on the stopwatch according to the watch's state
      */
@@ -701,8 +744,8 @@ public class StopwatchFragment extends DeskClockFragment
                 showShareButton(false);
                 break;
             case Stopwatches.STOPWATCH_RUNNING:
-                setButton(mLeftButton, R.string.sw_lap_button, R.drawable.ic_lap,
-                        !reachedMaxLaps(), View.VISIBLE);
+                setButton(mLeftButton, R.string.sw_lap_button, R.drawable.ic_lap, true,
+                        View.VISIBLE);
                 setStartStopText(mCircleLayout, mCenterButton, R.string.sw_stop_button);
                 showShareButton(false);
                 break;
@@ -716,9 +759,6 @@ public class StopwatchFragment extends DeskClockFragment
                 break;
         }
     }
-    private boolean reachedMaxLaps() {
-        return mLapsAdapter.getCount() >= Stopwatches.MAX_LAPS;
-    }
 
     /***
      * Set a single button with the string and states provided.
@@ -778,59 +818,53 @@ public class StopwatchFragment extends DeskClockFragment
 
     /***
      * Handle action when user presses the lap button
-     * @param time - in hundredth of a second
+     * @param time - in nanoseconds of {@link Stopwatches#getTimeNow}
      */
     private void addLapTime(long time) {
         // The total elapsed time
         final long curTime = time - mStartTime + mAccumulatedTime;
-        int size = mLapsAdapter.getCount();
-        if (size == 0) {
-            // Create and add the first lap
-            Lap firstLap = new Lap(curTime, curTime);
-            mLapsAdapter.addLap(firstLap);
-            // Create the first active lap
-            mLapsAdapter.addLap(new Lap(0, curTime));
-            // Update the interval on the clock and check the lap and total time formatting
-            mTime.setIntervalTime(curTime);
-            mLapsAdapter.updateTimeFormats(firstLap);
+        final boolean firstLap = mLapsAdapter.getCount() == 0;
+        // Finish the running lap and start a new one
+        mLapsAdapter.addLap(curTime);
+        if (firstLap) {
+            // Update the interval on the clock
+            mTime.setIntervalTime(Stopwatches.toMillis(curTime));
         } else {
-            // Finish active lap
-            final long lapTime = curTime - mLapsAdapter.getItem(1).mTotalTime;
-            mLapsAdapter.getItem(0).mLapTime = lapTime;
-            mLapsAdapter.getItem(0).mTotalTime = curTime;
-            // Create a new active lap
-            mLapsAdapter.addLap(new Lap(0, curTime));
-            // Update marker on clock and check that formatting for the lap number
-            mTime.setMarkerTime(lapTime);
-            mLapsAdapter.updateLapFormat();
+            // Update marker on clock
+            mTime.setMarkerTime(Stopwatches.toMillis(mLapsAdapter.getLapTime(1)));
         }
         // Repaint the laps list
         mLapsAdapter.notifyDataSetChanged();
 
         // Start lap animation starting from the second lap
         mTime.stopIntervalAnimation();
-        if (!reachedMaxLaps()) {
-            mTime.startIntervalAnimation();
-        }
+        mTime.startIntervalAnimation();
     }
 
     private void updateCurrentLap(long totalTime) {
-        // There are either 0, 2 or more Laps in the list See {@link #addLapTime}
+        // There are either 0, 2 or more rows in the list See {@link #addLapTime}
         if (mLapsAdapter.getCount() > 0) {
-            Lap curLap = mLapsAdapter.getItem(0);
-            curLap.mLapTime = totalTime - mLapsAdapter.getItem(1).mTotalTime;
-            curLap.mTotalTime = totalTime;
             // If this lap has caused a change in the format for total and/or lap time, all of
             // the rows need a fresh print. The simplest way to refresh all of the rows is
             // calling notifyDataSetChanged.
-            if (mLapsAdapter.updateTimeFormats(curLap)) {
+            if (mLapsAdapter.setCurrentTotalTime(totalTime)) {
                 mLapsAdapter.notifyDataSetChanged();
             } else {
-                curLap.updateView();
+                updateCurrentLapView();
             }
         }
     }
 
+    /**
+     * Refresh the row of the running lap, if it is on screen. It is always the first row.
+     */
+    private void updateCurrentLapView() {
+        if (mLapsAdapter.getCount() > 0 && mLapsList.getFirstVisiblePosition() == 0
+                && mLapsList.getChildCount() > 0) {
+            mLapsAdapter.setTimeText(mLapsList.getChildAt(0), 0);
+        }
+    }
+
     /**
      * Show or hide the laps-list
      */
@@ -887,10 +921,10 @@ public class StopwatchFragment extends DeskClockFragment
     Runnable mTimeUpdateThread = new Runnable() {
         @Override
         public void run() {
-            long curTime = Utils.getTimeNow();
+            long curTime = Stopwatches.getTimeNow();
             long totalTime = mAccumulatedTime + (curTime - mStartTime);
             if (mTime != null) {
-                mTimeText.setTime(totalTime, true, true);
+                mTimeText.setTime(Stopwatches.toMillis(totalTime), true, true);
             }
             if (mLapsAdapter.getCount() > 0) {
                 updateCurrentLap(totalTime);
@@ -904,22 +938,14 @@ public class StopwatchFragment extends DeskClockFragment
         editor.putLong (Stopwatches.PREF_START_TIME, mStartTime);
         editor.putLong (Stopwatches.PREF_ACCUM_TIME, mAccumulatedTime);
         editor.putInt (Stopwatches.PREF_STATE, mState);
-        if (mLapsAdapter != null) {
-            long [] laps = mLapsAdapter.getLapTimes();
-            if (laps != null) {
-                editor.putInt (Stopwatches.PREF_LAP_NUM, laps.length);
-                for (int i = 0; i < laps.length; i++) {
-                    String key = Stopwatches.PREF_LAP_TIME + Integer.toString(laps.length - i);
-                    editor.putLong (key, laps[i]);
-                }
-            }
-        }
         if (mState == Stopwatches.STOPWATCH_RUNNING) {
-            editor.putLong(Stopwatches.NOTIF_CLOCK_BASE, mStartTime-mAccumulatedTime);
+            editor.putLong(Stopwatches.NOTIF_CLOCK_BASE,
+                    Stopwatches.toMillis(mStartTime - mAccumulatedTime));
             editor.putLong(Stopwatches.NOTIF_CLOCK_ELAPSED, -1);
             editor.putBoolean(Stopwatches.NOTIF_CLOCK_RUNNING, true);
         } else if (mState == Stopwatches.STOPWATCH_STOPPED) {
-            editor.putLong(Stopwatches.NOTIF_CLOCK_ELAPSED, mAccumulatedTime);
+            editor.putLong(Stopwatches.NOTIF_CLOCK_ELAPSED,
+                    Stopwatches.toMillis(mAccumulatedTime));
             editor.putLong(Stopwatches.NOTIF_CLOCK_BASE, -1);
             editor.putBoolean(Stopwatches.NOTIF_CLOCK_RUNNING, false);
         } else if (mState == Stopwatches.STOPWATCH_RESET) {
@@ -931,24 +957,25 @@ public class StopwatchFragment extends DeskClockFragment
         editor.apply();
     }
 
+    /**
+     * Show the laps of the lap store, which the service adds to as well.
+     */
+    private void reloadLaps() {
+        long totalTime = mAccumulatedTime;
+        if (mState == Stopwatches.STOPWATCH_RUNNING) {
+            totalTime += Stopwatches.getTimeNow() - mStartTime;
+        }
+        if (mLapsAdapter.reloadLaps(totalTime)) {
+            showLaps();
+        }
+    }
+
     private void readFromSharedPref(SharedPreferences prefs) {
         mStartTime = prefs.getLong(Stopwatches.PREF_START_TIME, 0);
         mAccumulatedTime = prefs.getLong(Stopwatches.PREF_ACCUM_TIME, 0);
         mState = prefs.getInt(Stopwatches.PREF_STATE, Stopwatches.STOPWATCH_RESET);
-        int numLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, Stopwatches.STOPWATCH_RESET);
         if (mLapsAdapter != null) {
-            long[] oldLaps = mLapsAdapter.getLapTimes();
-            if (oldLaps == null || oldLaps.length < numLaps) {
-                long[] laps = new long[numLaps];
-                long prevLapElapsedTime = 0;
-                for (int lap_i = 0; lap_i < numLaps; lap_i++) {
-                    String key = Stopwatches.PREF_LAP_TIME + Integer.toString(lap_i + 1);
-                    long lap = prefs.getLong(key, 0);
-                    laps[numLaps - lap_i - 1] = lap - prevLapElapsedTime;
-                    prevLapElapsedTime = lap;
-                }
-                mLapsAdapter.setLapTimes(laps);
-            }
+            reloadLaps();
         }
         if (prefs.getBoolean(Stopwatches.PREF_UPDATE_CIRCLE, true)) {
             if (mState == Stopwatches.STOPWATCH_STOPPED) {
@@ -1017,17 +1044,27 @@ public class StopwatchFragment extends DeskClockFragment
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
-        if (prefs.equals(PreferenceManager.getDefaultSharedPreferences(getActivity()))) {
-            if (! (key.equals(Stopwatches.PREF_LAP_NUM) ||
-                    key.startsWith(Stopwatches.PREF_LAP_TIME))) {
-                readFromSharedPref(prefs);
-                if (prefs.getBoolean(Stopwatches.PREF_UPDATE_CIRCLE, true)) {
-                    mTime.readFromSharedPref(prefs, "sw");
-                }
+        if (prefs.equals(PreferenceManager.getDefaultSharedPreferences(getActivity()))
+                && isStopwatchKey(key)) {
+            readFromSharedPref(prefs);
+            if (prefs.getBoolean(Stopwatches.PREF_UPDATE_CIRCLE, true)) {
+                mTime.readFromSharedPref(prefs, "sw");
             }
         }
     }
 
+    /**
+     * @return true if the key is written by the stopwatch service, the rest of the app shares
+     *         the same preferences
+     */
+    private static boolean isStopwatchKey(String key) {
+        return key.equals(Stopwatches.PREF_START_TIME)
+                || key.equals(Stopwatches.PREF_ACCUM_TIME)
+                || key.equals(Stopwatches.PREF_STATE)
+                || key.equals(Stopwatches.PREF_UPDATE_CIRCLE)
+                || key.startsWith(Stopwatches.KEY + "_ctv_");
+    }
+
     // Used to keeps screen on when stopwatch is running.
 
     private void acquireWakeLock() {
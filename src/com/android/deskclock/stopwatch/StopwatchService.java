@@ -22,8 +22,7 @@ import com.android.deskclock.Utils;
  * TODO: Insert description here. (generated by sblitz)
  */
 public class StopwatchService extends Service {
-    // Member fields
-    private int mNumLaps;
+    // Member fields, times in nanoseconds of Stopwatches.getTimeNow()
     private long mElapsedTime;
     private long mStartTime;
     private boolean mLoadApp;
@@ -41,7 +40,6 @@ public class StopwatchService extends Service {
 
     @Override
     public void onCreate() {
-        mNumLaps = 0;
         mElapsedTime = 0;
         mStartTime = 0;
         mLoadApp = false;
@@ -54,47 +52,57 @@ public class StopwatchService extends Service {
             return Service.START_NOT_STICKY;
         }
 
-        if (mStartTime == 0 || mElapsedTime == 0 || mNumLaps == 0) {
+        if (mStartTime == 0 || mElapsedTime == 0) {
             // May not have the most recent values.
             readFromSharedPrefs();
         }
 
         String actionType = intent.getAction();
-        long actionTime = intent.getLongExtra(Stopwatches.MESSAGE_TIME, Utils.getTimeNow());
+        long actionTime = intent.getLongExtra(Stopwatches.MESSAGE_TIME, Stopwatches.getTimeNow());
         boolean showNotif = intent.getBooleanExtra(Stopwatches.SHOW_NOTIF, true);
         boolean updateCircle = showNotif; // Don't save updates to the cirle if we're in the app.
+        final LapStore laps = LapStore.getInstance(this);
         if (actionType.equals(Stopwatches.START_STOPWATCH)) {
             mStartTime = actionTime;
             writeSharedPrefsStarted(mStartTime, updateCircle);
             if (showNotif) {
-                setNotification(mStartTime - mElapsedTime, true, mNumLaps);
+                setNotification(Stopwatches.toMillis(mStartTime - mElapsedTime), true,
+                        getNumLaps(laps));
             } else {
-                saveNotification(mStartTime - mElapsedTime, true, mNumLaps);
+                saveNotification(Stopwatches.toMillis(mStartTime - mElapsedTime), true,
+                        getNumLaps(laps));
             }
         } else if (actionType.equals(Stopwatches.LAP_STOPWATCH)) {
-            mNumLaps++;
-            long lapTimeElapsed = actionTime - mStartTime + mElapsedTime;
-            writeSharedPrefsLap(lapTimeElapsed, updateCircle);
+            // Laps taken in the app are already in the lap store
+            if (updateCircle) {
+                laps.addLap(actionTime - mStartTime + mElapsedTime);
+            }
+            writeSharedPrefsLap(laps, updateCircle);
             if (showNotif) {
-                setNotification(mStartTime - mElapsedTime, true, mNumLaps);
+                setNotification(Stopwatches.toMillis(mStartTime - mElapsedTime), true,
+                        getNumLaps(laps));
             } else {
-                saveNotification(mStartTime - mElapsedTime, true, mNumLaps);
+                saveNotification(Stopwatches.toMillis(mStartTime - mElapsedTime), true,
+                        getNumLaps(laps));
             }
         } else if (actionType.equals(Stopwatches.STOP_STOPWATCH)) {
             mElapsedTime = mElapsedTime + (actionTime - mStartTime);
             writeSharedPrefsStopped(mElapsedTime, updateCircle);
             if (showNotif) {
-                setNotification(actionTime - mElapsedTime, false, mNumLaps);
+                setNotification(Stopwatches.toMillis(actionTime - mElapsedTime), false,
+                        getNumLaps(laps));
             } else {
-                saveNotification(mElapsedTime, false, mNumLaps);
+                saveNotification(Stopwatches.toMillis(mElapsedTime), false, getNumLaps(laps));
             }
         } else if (actionType.equals(Stopwatches.RESET_STOPWATCH)) {
             mLoadApp = false;
+            laps.clear();
             writeSharedPrefsReset(updateCircle);
             clearSavedNotification();
             stopSelf();
         } else if (actionType.equals(Stopwatches.RESET_AND_LAUNCH_STOPWATCH)) {
             mLoadApp = true;
+            laps.clear();
             writeSharedPrefsReset(updateCircle);
             clearSavedNotification();
             closeNotificationShade();
@@ -106,7 +114,8 @@ public class StopwatchService extends Service {
             shareIntent.putExtra(
                     Intent.EXTRA_SUBJECT, Stopwatches.getShareTitle(getApplicationContext()));
             shareIntent.putExtra(Intent.EXTRA_TEXT, Stopwatches.buildShareResults(
-                    getApplicationContext(), mElapsedTime, readLapsFromPrefs()));
+                    getApplicationContext(), mElapsedTime, laps.getLapTimes(mElapsedTime),
+                    laps.getStats()));
             Intent chooserIntent = Intent.createChooser(shareIntent, null);
             chooserIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
             getApplication().startActivity(chooserIntent);
@@ -129,7 +138,6 @@ public class StopwatchService extends Service {
     public void onDestroy() {
         mNotificationManager.cancel(NOTIFICATION_ID);
         clearSavedNotification();
-        mNumLaps = 0;
         mElapsedTime = 0;
         mStartTime = 0;
         if (mLoadApp) {
@@ -275,14 +283,14 @@ public class StopwatchService extends Service {
         long clockBaseTime = prefs.getLong(Stopwatches.NOTIF_CLOCK_BASE, -1);
         long clockElapsedTime = prefs.getLong(Stopwatches.NOTIF_CLOCK_ELAPSED, -1);
         boolean clockRunning = prefs.getBoolean(Stopwatches.NOTIF_CLOCK_RUNNING, false);
-        int numLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, -1);
+        int numLaps = getNumLaps(LapStore.getInstance(this));
         if (clockBaseTime == -1) {
             if (clockElapsedTime == -1) {
                 return false;
             } else {
                 // We don't have a clock base time, so the clock is stopped.
                 // Use the elapsed time to figure out what time to show.
-                mElapsedTime = clockElapsedTime;
+                mElapsedTime = clockElapsedTime * Stopwatches.NANOS_PER_MILLI;
                 clockBaseTime = Utils.getTimeNow() - clockElapsedTime;
             }
         }
@@ -309,31 +317,23 @@ public class StopwatchService extends Service {
     private void readFromSharedPrefs() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
                 getApplicationContext());
+        Stopwatches.upgradeSharedPrefs(prefs);
         mStartTime = prefs.getLong(Stopwatches.PREF_START_TIME, 0);
         mElapsedTime = prefs.getLong(Stopwatches.PREF_ACCUM_TIME, 0);
-        mNumLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, Stopwatches.STOPWATCH_RESET);
+        // Start replaying the lap journal if this process has not read it yet
+        LapStore.getInstance(this);
     }
 
-    private long[] readLapsFromPrefs() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
-                getApplicationContext());
-        int numLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, Stopwatches.STOPWATCH_RESET);
-        long[] laps = new long[numLaps];
-        long prevLapElapsedTime = 0;
-        for (int lap_i = 0; lap_i < numLaps; lap_i++) {
-            String key = Stopwatches.PREF_LAP_TIME + Integer.toString(lap_i + 1);
-            long lap = prefs.getLong(key, 0);
-            if (lap == prevLapElapsedTime && lap_i == numLaps - 1) {
-                lap = mElapsedTime;
-            }
-            laps[numLaps - lap_i - 1] = lap - prevLapElapsedTime;
-            prevLapElapsedTime = lap;
-        }
-        return laps;
+    /**
+     * @return number of the running lap, 0 until the first lap is taken
+     */
+    private static int getNumLaps(LapStore laps) {
+        final int count = laps.getCount();
+        return count == 0 ? 0 : count + 1;
     }
 
-    private void writeToSharedPrefs(Long startTime, Long lapTimeElapsed, Long elapsedTime,
-            Integer state, boolean updateCircle) {
+    private void writeToSharedPrefs(Long startTime, Long elapsedTime, Integer state,
+            boolean updateCircle) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
                 getApplicationContext());
         SharedPreferences.Editor editor = prefs.edit();
@@ -341,17 +341,6 @@ public class StopwatchService extends Service {
             editor.putLong(Stopwatches.PREF_START_TIME, startTime);
             mStartTime = startTime;
         }
-        if (lapTimeElapsed != null) {
-            int numLaps = prefs.getInt(Stopwatches.PREF_LAP_NUM, 0);
-            if (numLaps == 0) {
-                mNumLaps++;
-                numLaps++;
-            }
-            editor.putLong(Stopwatches.PREF_LAP_TIME + Integer.toString(numLaps), lapTimeElapsed);
-            numLaps++;
-            editor.putLong(Stopwatches.PREF_LAP_TIME + Integer.toString(numLaps), lapTimeElapsed);
-            editor.putInt(Stopwatches.PREF_LAP_NUM, numLaps);
-        }
         if (elapsedTime != null) {
             editor.putLong(Stopwatches.PREF_ACCUM_TIME, elapsedTime);
             mElapsedTime = elapsedTime;
@@ -370,7 +359,7 @@ public class StopwatchService extends Service {
     }
 
     private void writeSharedPrefsStarted(long startTime, boolean updateCircle) {
-        writeToSharedPrefs(startTime, null, null, Stopwatches.STOPWATCH_RUNNING, updateCircle);
+        writeToSharedPrefs(startTime, null, Stopwatches.STOPWATCH_RUNNING, updateCircle);
         if (updateCircle) {
             long time = Utils.getTimeNow();
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
@@ -388,34 +377,30 @@ public class StopwatchService extends Service {
         }
     }
 
-    private void writeSharedPrefsLap(long lapTimeElapsed, boolean updateCircle) {
-        writeToSharedPrefs(null, lapTimeElapsed, null, null, updateCircle);
+    private void writeSharedPrefsLap(LapStore laps, boolean updateCircle) {
+        // The lap itself is in the lap journal, a single edit saves the circle
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
+                getApplicationContext());
+        SharedPreferences.Editor editor = prefs.edit();
         if (updateCircle) {
             long time = Utils.getTimeNow();
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
-                    getApplicationContext());
-            SharedPreferences.Editor editor = prefs.edit();
-            long laps[] = readLapsFromPrefs();
-            int numLaps = laps.length;
-            long lapTime = laps[1];
-            if (numLaps == 2) { // Have only hit lap once.
+            int numLaps = laps.getCount();
+            long lapTime = Stopwatches.toMillis(laps.getLapTime(numLaps - 1));
+            if (numLaps == 1) { // Have only hit lap once.
                 editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_INTERVAL, lapTime);
             } else {
                 editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_MARKER_TIME, lapTime);
             }
             editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_ACCUM_TIME, 0);
-            if (numLaps < Stopwatches.MAX_LAPS) {
-                editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_INTERVAL_START, time);
-                editor.putBoolean(Stopwatches.KEY + CircleTimerView.PREF_CTV_PAUSED, false);
-            } else {
-                editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_INTERVAL_START, -1);
-            }
-            editor.apply();
+            editor.putLong(Stopwatches.KEY + CircleTimerView.PREF_CTV_INTERVAL_START, time);
+            editor.putBoolean(Stopwatches.KEY + CircleTimerView.PREF_CTV_PAUSED, false);
         }
+        editor.putBoolean(Stopwatches.PREF_UPDATE_CIRCLE, updateCircle);
+        editor.apply();
     }
 
     private void writeSharedPrefsStopped(long elapsedTime, boolean updateCircle) {
-        writeToSharedPrefs(null, null, elapsedTime, Stopwatches.STOPWATCH_STOPPED, updateCircle);
+        writeToSharedPrefs(null, elapsedTime, Stopwatches.STOPWATCH_STOPPED, updateCircle);
         if (updateCircle) {
             long time = Utils.getTimeNow();
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
@@ -435,6 +420,6 @@ public class StopwatchService extends Service {
     }
 
     private void writeSharedPrefsReset(boolean updateCircle) {
-        writeToSharedPrefs(null, null, null, Stopwatches.STOPWATCH_RESET, updateCircle);
+        writeToSharedPrefs(null, null, Stopwatches.STOPWATCH_RESET, updateCircle);
     }
 }
@@ -17,6 +17,8 @@
 package com.android.deskclock.stopwatch;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
 
 import com.android.deskclock.R;
 
@@ -25,6 +27,9 @@ import java.text.DecimalFormatSymbols;
 /**
  * Stopwatch utility class providing access to stopwatch resources and data formatting strings of
  * stopwatch data.
+ *
+ * Stopwatch times are kept in nanoseconds of {@link #getTimeNow}, so laps and pauses add up
+ * without rounding. They are only rounded to hundredths of a second when they are formatted.
  */
 public class Stopwatches {
     // Actions processed by stopwatch receiver
@@ -37,11 +42,9 @@ public class Stopwatches {
     public static final String MESSAGE_TIME = "message_time";
     public static final String SHOW_NOTIF = "show_notification";
     public static final String KILL_NOTIF = "kill_notification";
-    public static final String PREF_START_TIME  = "sw_start_time";
-    public static final String PREF_ACCUM_TIME = "sw_accum_time";
+    public static final String PREF_START_TIME  = "sw_start_time_nanos";
+    public static final String PREF_ACCUM_TIME = "sw_accum_time_nanos";
     public static final String PREF_STATE = "sw_state";
-    public static final String PREF_LAP_NUM = "sw_lap_num";
-    public static final String PREF_LAP_TIME = "sw_lap_time_";
     public static final String PREF_UPDATE_CIRCLE = "sw_update_circle";
     public static final String NOTIF_CLOCK_BASE = "notif_clock_base";
     public static final String NOTIF_CLOCK_ELAPSED = "notif_clock_elapsed";
@@ -52,9 +55,52 @@ public class Stopwatches {
     public static final int STOPWATCH_RUNNING = 1;
     public static final int STOPWATCH_STOPPED = 2;
 
-    public static final int MAX_LAPS = 99;
     public static final int NO_LAP_NUMBER = -1;
 
+    public static final long NANOS_PER_MILLI = 1000000;
+    private static final long NANOS_PER_HUNDREDTH = 10 * NANOS_PER_MILLI;
+    private static final long NANOS_PER_SECOND = 1000 * NANOS_PER_MILLI;
+
+    // Start and accumulated times saved in milliseconds by older versions
+    private static final String LEGACY_PREF_START_TIME = "sw_start_time";
+    private static final String LEGACY_PREF_ACCUM_TIME = "sw_accum_time";
+
+    /**
+     * @return current time of the stopwatch, in nanoseconds since boot. The clock is monotonic
+     *         and keeps counting in deep sleep.
+     */
+    public static long getTimeNow() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @return stopwatch time in milliseconds, for views and notifications counting in them
+     */
+    public static long toMillis(long time) {
+        return time / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Convert the start and accumulated times saved in milliseconds by older versions.
+     */
+    public static void upgradeSharedPrefs(SharedPreferences prefs) {
+        if (!prefs.contains(LEGACY_PREF_START_TIME) && !prefs.contains(LEGACY_PREF_ACCUM_TIME)) {
+            return;
+        }
+        SharedPreferences.Editor editor = prefs.edit();
+        if (prefs.contains(LEGACY_PREF_START_TIME)) {
+            editor.putLong(PREF_START_TIME,
+                    prefs.getLong(LEGACY_PREF_START_TIME, 0) * NANOS_PER_MILLI);
+            editor.remove(LEGACY_PREF_START_TIME);
+        }
+        if (prefs.contains(LEGACY_PREF_ACCUM_TIME)) {
+            editor.putLong(PREF_ACCUM_TIME,
+                    prefs.getLong(LEGACY_PREF_ACCUM_TIME, 0) * NANOS_PER_MILLI);
+            editor.remove(LEGACY_PREF_ACCUM_TIME);
+        }
+        editor.apply();
+    }
+
     /**
      * Pull a random jocular title
      * @param context context with resources
@@ -70,9 +116,11 @@ public class Stopwatches {
      * @param context context with resources
      * @param time total elapsed time
      * @param laps array of times
+     * @param stats statistics of the completed laps, or null
      * @return formatted text
      */
-    public static String buildShareResults(Context context, String time, long[] laps) {
+    public static String buildShareResults(Context context, String time, long[] laps,
+            LapStats stats) {
         StringBuilder b = new StringBuilder (context.getString(R.string.sw_share_main, time));
         b.append("\n");
 
@@ -83,8 +131,37 @@ public class Stopwatches {
 
         b.append(context.getString(R.string.sw_share_laps));
         b.append("\n");
+        final String[] lapFormats =
+                context.getResources().getStringArray(R.array.shared_laps_format_set);
         for (int i = 1; i <= lapsNum; i ++) {
-            b.append(getTimeText(context, laps[lapsNum-i], i));
+            b.append(getTimeText(lapFormats, laps[lapsNum-i], i));
+            b.append("\n");
+        }
+
+        // Statistics only make sense with a few completed laps
+        if (stats == null || stats.getCount() < 2) {
+            return b.toString();
+        }
+        final String[] formats =
+                context.getResources().getStringArray(R.array.stopwatch_format_set);
+        b.append(context.getString(R.string.sw_share_lap_stats));
+        b.append("\n");
+        b.append(context.getString(R.string.sw_share_best_lap, stats.getBestLap() + 1,
+                getTimeText(formats, stats.getBestLapTime(), NO_LAP_NUMBER)));
+        b.append("\n");
+        b.append(context.getString(R.string.sw_share_worst_lap, stats.getWorstLap() + 1,
+                getTimeText(formats, stats.getWorstLapTime(), NO_LAP_NUMBER)));
+        b.append("\n");
+        b.append(context.getString(R.string.sw_share_mean_lap,
+                getTimeText(formats, stats.getMeanLapTime(), NO_LAP_NUMBER)));
+        b.append("\n");
+        b.append(context.getString(R.string.sw_share_lap_deviation,
+                getTimeText(formats, stats.getStandardDeviation(), NO_LAP_NUMBER)));
+        b.append("\n");
+        if (stats.getMovingAverageCount() < stats.getCount()) {
+            final int count = stats.getMovingAverageCount();
+            b.append(context.getResources().getQuantityString(R.plurals.sw_share_recent_laps,
+                    count, count, getTimeText(formats, stats.getMovingAverage(), NO_LAP_NUMBER)));
             b.append("\n");
         }
         return b.toString();
@@ -93,37 +170,44 @@ public class Stopwatches {
     /**
      * Create a multi-line text with the stopwatch lap data
      * @param context context with resources
-     * @param time total elapsed time
+     * @param time total elapsed time, in nanoseconds
      * @param laps array of times
+     * @param stats statistics of the completed laps, or null
      * @return formatted text
      */
-    public static String buildShareResults(Context context, long time, long[] laps) {
-        return buildShareResults(context, getTimeText(context, time, NO_LAP_NUMBER), laps);
+    public static String buildShareResults(Context context, long time, long[] laps,
+            LapStats stats) {
+        return buildShareResults(context, getTimeText(context, time, NO_LAP_NUMBER), laps,
+                stats);
     }
 
     /***
      * Format the string of the time running on the stopwatch up to hundred of a second accuracy
      * @param context context with resources
-     * @param time - in hundreds of a second since the stopwatch started
+     * @param time - in nanoseconds since the stopwatch started
      * @param lap lap number
      * @return formatted text
      */
     public static String getTimeText(Context context, long time, int lap) {
-        if (time < 0) {
-            time = 0;
-        }
         String[] formats;
         if (lap != NO_LAP_NUMBER) {
             formats = context.getResources().getStringArray(R.array.shared_laps_format_set);
         } else {
             formats = context.getResources().getStringArray(R.array.stopwatch_format_set);
         }
+        return getTimeText(formats, time, lap);
+    }
+
+    private static String getTimeText(String[] formats, long time, int lap) {
+        if (time < 0) {
+            time = 0;
+        }
         char decimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
         int formatIndex;
 
         long hundreds, seconds, minutes, hours;
-        seconds = time / 1000;
-        hundreds = (time - seconds * 1000) / 10;
+        seconds = time / NANOS_PER_SECOND;
+        hundreds = (time - seconds * NANOS_PER_SECOND) / NANOS_PER_HUNDREDTH;
         minutes = seconds / 60;
         seconds = seconds - minutes * 60;
         hours = minutes / 60;
@@ -145,15 +229,15 @@ public class Stopwatches {
 
     /***
      * Sets the string of the time running on the stopwatch up to hundred of a second accuracy
-     * @param time - in hundreds of a second since the stopwatch started
+     * @param time - in nanoseconds since the stopwatch started
      */
     public static String formatTimeText(long time, final String format) {
         if (time < 0) {
             time = 0;
         }
         long hundreds, seconds, minutes, hours;
-        seconds = time / 1000;
-        hundreds = (time - seconds * 1000) / 10;
+        seconds = time / NANOS_PER_SECOND;
+        hundreds = (time - seconds * NANOS_PER_SECOND) / NANOS_PER_HUNDREDTH;
         minutes = seconds / 60;
         seconds = seconds - minutes * 60;
         hours = minutes / 60;
@@ -40,10 +40,7 @@ import com.android.deskclock.Utils;
  * drawing digits (and optional label) of the time set in {@link #setTime(long, boolean, boolean)}
  */
 public class CountingTimerView extends View {
-    private static final String TWO_DIGITS = "%02d";
-    private static final String ONE_DIGIT = "%01d";
-    private static final String NEG_TWO_DIGITS = "-%02d";
-    private static final String NEG_ONE_DIGIT = "-%01d";
+    private static final char MINUS = '-';
     private static final float TEXT_SIZE_TO_WIDTH_RATIO = 0.85f;
     // This is the ratio of the font height needed to vertically offset the font for alignment
     // from the center.
@@ -55,7 +52,15 @@ public class CountingTimerView extends View {
     // Radial offset of the enclosing circle
     private final float mRadiusOffset;
 
-    private String mHours, mMinutes, mSeconds, mHundredths;
+    // Digits of the time, in the locale digits and with an optional leading minus sign. They
+    // are rewritten in place on every update, a length of 0 means the segment is not shown.
+    private final char[] mHours = new char[4];
+    private final char[] mMinutes = new char[3];
+    private final char[] mSeconds = new char[2];
+    private final char[] mHundredths = new char[2];
+    private int mHoursLength, mMinutesLength, mSecondsLength, mHundredthsLength;
+    // The ten digits of the default locale, from 0 to 9
+    private final char[] mLocaleDigits;
 
     private boolean mShowTimeStr = true;
     private final Paint mPaintBigThin = new Paint();
@@ -100,6 +105,8 @@ public class CountingTimerView extends View {
     static class UnsignedTime {
         protected Paint mPaint;
         protected float mEm;
+        // Text size mEm was measured at, it is only measured again when the size changes
+        private float mEmTextSize = -1;
         protected float mWidth = 0;
         private final String mWidest;
         protected final float mSpacingRatio;
@@ -135,19 +142,23 @@ public class CountingTimerView extends View {
             this.mSpacingRatio = spacingRatio;
         }
 
-        protected void updateWidth(final String time) {
-            mEm = mPaint.measureText(mWidest);
+        protected void updateWidth(final char[] time, int length) {
+            final float textSize = mPaint.getTextSize();
+            if (textSize != mEmTextSize) {
+                mEm = mPaint.measureText(mWidest);
+                mEmTextSize = textSize;
+            }
             mLabelWidth = mSpacingRatio * mEm;
-            mWidth = time.length() * mEm;
+            mWidth = length * mEm;
         }
 
         protected void resetWidth() {
             mWidth = mLabelWidth = 0;
         }
 
-        public float calcTotalWidth(final String time) {
-            if (time != null) {
-                updateWidth(time);
+        public float calcTotalWidth(final char[] time, int length) {
+            if (length > 0) {
+                updateWidth(time, length);
                 return mWidth + mLabelWidth;
             } else {
                 resetWidth();
@@ -164,15 +175,17 @@ public class CountingTimerView extends View {
          * @param canvas the canvas on which the time segment will be drawn
          * @param time time segment
          * @param ii what character to start the draw
+         * @param length number of characters in time
          * @param x offset
          * @param y offset
          * @return X location for the next segment
          */
-        protected float drawTime(Canvas canvas, final String time, int ii, float x, float y) {
+        protected float drawTime(Canvas canvas, final char[] time, int ii, int length, float x,
+                float y) {
             float textEm  = mEm / 2f;
-            while (ii < time.length()) {
+            while (ii < length) {
                 x += textEm;
-                canvas.drawText(time.substring(ii, ii + 1), x, y, mPaint);
+                canvas.drawText(time, ii, 1, x, y, mPaint);
                 x += textEm;
                 ii++;
             }
@@ -183,12 +196,13 @@ public class CountingTimerView extends View {
          * Draw this time segment and append the intra-segment spacing to the x
          * @param canvas the canvas on which the time segment will be drawn
          * @param time time segment
+         * @param length number of characters in time
          * @param x offset
          * @param y offset
          * @return X location for the next segment
          */
-        public float draw(Canvas canvas, final String time, float x, float y) {
-            return drawTime(canvas, time, 0, x, y) + getLabelWidth();
+        public float draw(Canvas canvas, final char[] time, int length, float x, float y) {
+            return drawTime(canvas, time, 0, length, x, y) + getLabelWidth();
         }
     }
 
@@ -202,11 +216,11 @@ public class CountingTimerView extends View {
 
         /**
          * Draw this time segment after prepending the intra-segment spacing to the x location.
-         * {@link UnsignedTime#draw(android.graphics.Canvas, String, float, float)}
+         * {@link UnsignedTime#draw(android.graphics.Canvas, char[], int, float, float)}
          */
         @Override
-        public float draw(Canvas canvas, final String time, float x, float y) {
-            return drawTime(canvas, time, 0, x + getLabelWidth(), y);
+        public float draw(Canvas canvas, final char[] time, int length, float x, float y) {
+            return drawTime(canvas, time, 0, length, x + getLabelWidth(), y);
         }
     }
 
@@ -215,16 +229,24 @@ public class CountingTimerView extends View {
      */
     static class SignedTime extends UnsignedTime {
         private float mMinusWidth = 0;
+        // Width of the minus sign and the text size it was measured at
+        private float mMeasuredMinusWidth;
+        private float mMinusTextSize = -1;
 
         public SignedTime (UnsignedTime unsignedTime, float spacingRatio) {
             super(unsignedTime, spacingRatio);
         }
 
         @Override
-        protected void updateWidth(final String time) {
-            super.updateWidth(time);
-            if (time.contains("-")) {
-                mMinusWidth = mPaint.measureText("-");
+        protected void updateWidth(final char[] time, int length) {
+            super.updateWidth(time, length);
+            if (time[0] == MINUS) {
+                final float textSize = mPaint.getTextSize();
+                if (textSize != mMinusTextSize) {
+                    mMeasuredMinusWidth = mPaint.measureText(time, 0, 1);
+                    mMinusTextSize = textSize;
+                }
+                mMinusWidth = mMeasuredMinusWidth;
                 mWidth += (mMinusWidth - mEm);
             } else {
                 mMinusWidth = 0;
@@ -240,20 +262,20 @@ public class CountingTimerView extends View {
         /**
          * Draws each character with a fixed spacing from time, handling the special negative
          * number case.
-         * {@link UnsignedTime#draw(android.graphics.Canvas, String, float, float)}
+         * {@link UnsignedTime#draw(android.graphics.Canvas, char[], int, float, float)}
          */
         @Override
-        public float draw(Canvas canvas, final String time, float x, float y) {
+        public float draw(Canvas canvas, final char[] time, int length, float x, float y) {
             int ii = 0;
             if (mMinusWidth != 0f) {
                 float minusWidth = mMinusWidth / 2;
                 x += minusWidth;
                 //TODO:hyphen is too thick when painted
-                canvas.drawText(time.substring(0, 1), x, y, mPaint);
+                canvas.drawText(time, 0, 1, x, y, mPaint);
                 x += minusWidth;
                 ii++;
             }
-            return drawTime(canvas, time, ii, x, y) + getLabelWidth();
+            return drawTime(canvas, time, ii, length, x, y) + getLabelWidth();
         }
     }
 
@@ -297,6 +319,7 @@ public class CountingTimerView extends View {
         mBigHours = new SignedTime(mBigSeconds, HOURS_MINUTES_SPACING);
         mBigMinutes = new SignedTime(mBigSeconds, HOURS_MINUTES_SPACING);
         mMedHundredths = new Hundredths(mPaintMed, HUNDREDTHS_SPACING, allDigits);
+        mLocaleDigits = (allDigits.length() == 10 ? allDigits : "0123456789").toCharArray();
 
         mRadiusOffset = Utils.calculateRadiusOffset(r);
     }
@@ -325,7 +348,6 @@ public class CountingTimerView extends View {
     public void setTime(long time, boolean showHundredths, boolean update) {
         int oldLength = getDigitsLength();
         boolean neg = false, showNeg = false;
-        String format;
         if (time < 0) {
             time = -time;
             neg = showNeg = true;
@@ -367,33 +389,24 @@ public class CountingTimerView extends View {
         }
 
         // Hours may be empty
-        if (hours >= 10) {
-            format = showNeg ? NEG_TWO_DIGITS : TWO_DIGITS;
-            mHours = String.format(format, hours);
-        } else if (hours > 0) {
-            format = showNeg ? NEG_ONE_DIGIT : ONE_DIGIT;
-            mHours = String.format(format, hours);
+        if (hours > 0) {
+            mHoursLength = formatDigits(mHours, hours, 1, showNeg);
         } else {
-            mHours = null;
+            mHoursLength = 0;
         }
 
         // Minutes are never empty and when hours are non-empty, must be two digits
-        if (minutes >= 10 || hours > 0) {
-            format = (showNeg && hours == 0) ? NEG_TWO_DIGITS : TWO_DIGITS;
-            mMinutes = String.format(format, minutes);
-        } else {
-            format = (showNeg && hours == 0) ? NEG_ONE_DIGIT : ONE_DIGIT;
-            mMinutes = String.format(format, minutes);
-        }
+        mMinutesLength = formatDigits(mMinutes, minutes, hours > 0 ? 2 : 1,
+                showNeg && hours == 0);
 
         // Seconds are always two digits
-        mSeconds = String.format(TWO_DIGITS, seconds);
+        mSecondsLength = formatDigits(mSeconds, seconds, 2, false);
 
         // Hundredths are optional and then two digits
         if (showHundredths) {
-            mHundredths = String.format(TWO_DIGITS, hundreds);
+            mHundredthsLength = formatDigits(mHundredths, hundreds, 2, false);
         } else {
-            mHundredths = null;
+            mHundredthsLength = 0;
         }
 
         int newLength = getDigitsLength();
@@ -405,23 +418,48 @@ public class CountingTimerView extends View {
         }
 
         if (update) {
-            setContentDescription(getTimeStringForAccessibility((int) hours, (int) minutes,
-                    (int) seconds, showNeg, getResources()));
+            // The description is only read by accessibility services, building it allocates
+            if (mAccessibilityManager.isEnabled()) {
+                setContentDescription(getTimeStringForAccessibility((int) hours, (int) minutes,
+                        (int) seconds, showNeg, getResources()));
+            }
             invalidate();
         }
     }
 
+    /**
+     * Write value in the locale digits at the start of digits, zero padded to minDigits and
+     * with a leading minus sign if negative.
+     *
+     * @return number of characters written
+     */
+    private int formatDigits(char[] digits, long value, int minDigits, boolean negative) {
+        int numDigits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            numDigits++;
+        }
+        numDigits = Math.max(numDigits, minDigits);
+
+        final int length = negative ? numDigits + 1 : numDigits;
+        if (negative) {
+            digits[0] = MINUS;
+        }
+        for (int i = length - 1; i >= length - numDigits; i--) {
+            digits[i] = mLocaleDigits[(int) (value % 10)];
+            value /= 10;
+        }
+        return length;
+    }
+
     private int getDigitsLength() {
-        return ((mHours == null) ? 0 : mHours.length())
-                + ((mMinutes == null) ? 0 : mMinutes.length())
-                + ((mSeconds == null) ? 0 : mSeconds.length())
-                + ((mHundredths == null) ? 0 : mHundredths.length());
+        return mHoursLength + mMinutesLength + mSecondsLength + mHundredthsLength;
     }
 
     private void calcTotalTextWidth() {
-        mTotalTextWidth = mBigHours.calcTotalWidth(mHours) + mBigMinutes.calcTotalWidth(mMinutes)
-                + mBigSeconds.calcTotalWidth(mSeconds)
-                + mMedHundredths.calcTotalWidth(mHundredths);
+        mTotalTextWidth = mBigHours.calcTotalWidth(mHours, mHoursLength)
+                + mBigMinutes.calcTotalWidth(mMinutes, mMinutesLength)
+                + mBigSeconds.calcTotalWidth(mSeconds, mSecondsLength)
+                + mMedHundredths.calcTotalWidth(mHundredths, mHundredthsLength);
     }
 
     /**
@@ -491,17 +529,17 @@ public class CountingTimerView extends View {
     }
 
     public String getTimeString() {
-        // Though only called from Stopwatch Share, so hundredth are never null,
-        // protect the future and check for null mHundredths
-        if (mHundredths == null) {
-            if (mHours == null) {
-                return String.format("%s:%s", mMinutes, mSeconds);
-            }
-            return String.format("%s:%s:%s", mHours, mMinutes, mSeconds);
-        } else if (mHours == null) {
-            return String.format("%s:%s.%s", mMinutes, mSeconds, mHundredths);
+        // Though only called from Stopwatch Share, so hundredth are never empty,
+        // protect the future and check for empty mHundredths
+        StringBuilder s = new StringBuilder();
+        if (mHoursLength > 0) {
+            s.append(mHours, 0, mHoursLength).append(':');
         }
-        return String.format("%s:%s:%s.%s", mHours, mMinutes, mSeconds, mHundredths);
+        s.append(mMinutes, 0, mMinutesLength).append(':').append(mSeconds, 0, mSecondsLength);
+        if (mHundredthsLength > 0) {
+            s.append('.').append(mHundredths, 0, mHundredthsLength);
+        }
+        return s.toString();
     }
 
     private static String getTimeStringForAccessibility(int hours, int minutes, int seconds,
@@ -637,17 +675,19 @@ public class CountingTimerView extends View {
         mPaintBigThin.setColor(textColor);
         mPaintMed.setColor(textColor);
 
-        if (mHours != null) {
-            xTextStart = mBigHours.draw(canvas, mHours, xTextStart, yTextStart);
+        if (mHoursLength > 0) {
+            xTextStart = mBigHours.draw(canvas, mHours, mHoursLength, xTextStart, yTextStart);
         }
-        if (mMinutes != null) {
-            xTextStart = mBigMinutes.draw(canvas, mMinutes, xTextStart, yTextStart);
+        if (mMinutesLength > 0) {
+            xTextStart = mBigMinutes.draw(canvas, mMinutes, mMinutesLength, xTextStart,
+                    yTextStart);
         }
-        if (mSeconds != null) {
-            xTextStart = mBigSeconds.draw(canvas, mSeconds, xTextStart, yTextStart);
+        if (mSecondsLength > 0) {
+            xTextStart = mBigSeconds.draw(canvas, mSeconds, mSecondsLength, xTextStart,
+                    yTextStart);
         }
-        if (mHundredths != null) {
-            mMedHundredths.draw(canvas, mHundredths, xTextStart, yTextStart);
+        if (mHundredthsLength > 0) {
+            mMedHundredths.draw(canvas, mHundredths, mHundredthsLength, xTextStart, yTextStart);
         }
     }
 
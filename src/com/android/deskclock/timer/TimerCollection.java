@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.timer;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The timers, newest first, indexed by id, by state and by times up time. Timers are changed in
+ * place, so each one is refiled by {@link #update} after it changes; until then the indexes keep
+ * the state and times up time it had at its last update. Lookups by id and state are O(1), and
+ * listing the timers in a state is O(k) in the number of those timers.
+ */
+final class TimerCollection {
+    private final ArrayList<TimerObj> mTimers = new ArrayList<TimerObj>();
+    private final HashMap<Integer, TimerObj> mTimersById = new HashMap<Integer, TimerObj>();
+
+    // State of every timer at its last update, and the timers in each state
+    private final HashMap<Integer, Integer> mStates = new HashMap<Integer, Integer>();
+    private final SparseArray<LinkedHashSet<TimerObj>> mTimersByState =
+            new SparseArray<LinkedHashSet<TimerObj>>();
+
+    private final TimerExpiryQueue mExpiryQueue = new TimerExpiryQueue();
+
+    /**
+     * @return every timer, newest first. Only to be changed through this class.
+     */
+    ArrayList<TimerObj> getTimers() {
+        return mTimers;
+    }
+
+    /**
+     * @return timer with the id, or null if there is none
+     */
+    TimerObj get(int timerId) {
+        return mTimersById.get(timerId);
+    }
+
+    boolean contains(int timerId) {
+        return mTimersById.containsKey(timerId);
+    }
+
+    /**
+     * Add the timer last, for timers read oldest last.
+     */
+    void append(TimerObj timer) {
+        mTimers.add(timer);
+        mTimersById.put(timer.mTimerId, timer);
+        index(timer);
+    }
+
+    /**
+     * Add the timer first if it is new, or put it in place of the timer with its id, and file it
+     * under its current state and times up time.
+     */
+    void update(TimerObj timer) {
+        final TimerObj existing = mTimersById.put(timer.mTimerId, timer);
+        if (existing == null) {
+            mTimers.add(0, timer);
+        } else {
+            if (existing != timer) {
+                mTimers.set(mTimers.indexOf(existing), timer);
+            }
+            unindex(existing);
+        }
+        index(timer);
+    }
+
+    /**
+     * Remove the timer with the id, if any.
+     */
+    void remove(int timerId) {
+        final TimerObj existing = mTimersById.remove(timerId);
+        if (existing != null) {
+            mTimers.remove(existing);
+            unindex(existing);
+        }
+    }
+
+    /**
+     * @return timers in the state at their last update, in the order they got there. The set is
+     *         shared and must not be changed.
+     */
+    Set<TimerObj> getTimersInState(int state) {
+        final Set<TimerObj> timers = mTimersByState.get(state);
+        return timers == null ? Collections.<TimerObj>emptySet() : timers;
+    }
+
+    /**
+     * @return running timer that goes off first, or null if no timer is running
+     */
+    TimerObj getNextExpiringTimer() {
+        return mExpiryQueue.first();
+    }
+
+    /**
+     * @return running timer that goes off first strictly after time, or null if there is none
+     */
+    TimerObj getNextExpiringTimerAfter(long time) {
+        return mExpiryQueue.firstAfter(time);
+    }
+
+    private void index(TimerObj timer) {
+        LinkedHashSet<TimerObj> timers = mTimersByState.get(timer.mState);
+        if (timers == null) {
+            timers = new LinkedHashSet<TimerObj>();
+            mTimersByState.put(timer.mState, timers);
+        }
+        timers.add(timer);
+        mStates.put(timer.mTimerId, timer.mState);
+        mExpiryQueue.update(timer);
+    }
+
+    private void unindex(TimerObj timer) {
+        final Integer state = mStates.remove(timer.mTimerId);
+        if (state != null) {
+            mTimersByState.get(state).remove(timer);
+        }
+        mExpiryQueue.remove(timer.mTimerId);
+    }
+}
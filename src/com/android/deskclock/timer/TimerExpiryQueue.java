@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.timer;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Running timers ordered by the time they go off. Each entry keeps the times up time the timer
+ * had when it was last updated, so a timer changed in place is found and moved by its id.
+ * Updates and lookups are O(log n).
+ */
+final class TimerExpiryQueue {
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if (e1.mTimesupTime != e2.mTimesupTime) {
+                return e1.mTimesupTime < e2.mTimesupTime ? -1 : 1;
+            }
+            return e1.mTimerId < e2.mTimerId ? -1 : (e1.mTimerId == e2.mTimerId ? 0 : 1);
+        }
+    };
+
+    private final TreeSet<Entry> mQueue = new TreeSet<Entry>(ENTRY_COMPARATOR);
+    private final HashMap<Integer, Entry> mEntries = new HashMap<Integer, Entry>();
+
+    /**
+     * Queue the timer at its current times up time if it is running, drop it otherwise.
+     */
+    void update(TimerObj timer) {
+        remove(timer.mTimerId);
+        if (timer.mState == TimerObj.STATE_RUNNING) {
+            Entry entry = new Entry(timer.getTimesupTime(), timer.mTimerId, timer);
+            mQueue.add(entry);
+            mEntries.put(timer.mTimerId, entry);
+        }
+    }
+
+    void remove(int timerId) {
+        Entry entry = mEntries.remove(timerId);
+        if (entry != null) {
+            mQueue.remove(entry);
+        }
+    }
+
+    /**
+     * @return running timer that goes off first, or null if no timer is running
+     */
+    TimerObj first() {
+        return mQueue.isEmpty() ? null : mQueue.first().mTimer;
+    }
+
+    /**
+     * @return running timer that goes off first strictly after time, or null if there is none
+     */
+    TimerObj firstAfter(long time) {
+        Entry entry = mQueue.higher(new Entry(time, Integer.MAX_VALUE, null));
+        return entry == null ? null : entry.mTimer;
+    }
+
+    private static final class Entry {
+        final long mTimesupTime;
+        final int mTimerId;
+        final TimerObj mTimer;
+
+        Entry(long timesupTime, int timerId, TimerObj timer) {
+            mTimesupTime = timesupTime;
+            mTimerId = timerId;
+            mTimer = timer;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import android.content.res.Resources;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -110,11 +111,11 @@ public class TimerFragment extends DeskClockFragment
         public void onListChanged();
     }
 
-    TimersListAdapter createAdapter(Context context, SharedPreferences prefs) {
+    TimersListAdapter createAdapter(Context context) {
         if (mOnEmptyListListener == null) {
-            return new TimersListAdapter(context, prefs);
+            return new TimersListAdapter(context);
         } else {
-            return new TimesUpListAdapter(context, prefs);
+            return new TimesUpListAdapter(context);
         }
     }
 
@@ -122,11 +123,9 @@ public class TimerFragment extends DeskClockFragment
 
         ArrayList<TimerObj> mTimers = new ArrayList<TimerObj> ();
         Context mContext;
-        SharedPreferences mmPrefs;
 
-        public TimersListAdapter(Context context, SharedPreferences prefs) {
+        public TimersListAdapter(Context context) {
             mContext = context;
-            mmPrefs = prefs;
         }
 
         @Override
@@ -160,7 +159,7 @@ public class TimerFragment extends DeskClockFragment
                     if (t.mView != null) {
                         ((TimerListItem) t.mView).stop();
                     }
-                    t.deleteFromSharedPref(mmPrefs);
+                    TimerStore.deleteTimer(mContext, t);
                     mTimers.remove(i);
                     if (mTimers.size() == 1 && mColumnCount > 1) {
                         // If we're going from two timers to one (in the same row), we don't want to
@@ -271,6 +270,7 @@ public class TimerFragment extends DeskClockFragment
             } else {
                 labelIcon.setVisibility(View.INVISIBLE);
             }
+            updateClockTicks();
             return v;
         }
 
@@ -291,16 +291,16 @@ public class TimerFragment extends DeskClockFragment
         }
 
         public void onSaveInstanceState(Bundle outState) {
-            TimerObj.putTimersInSharedPrefs(mmPrefs, mTimers);
+            TimerStore.saveTimers(mContext, mTimers);
         }
 
         public void onRestoreInstanceState(Bundle outState) {
-            TimerObj.getTimersFromSharedPrefs(mmPrefs, mTimers);
+            mTimers.addAll(TimerStore.getTimers(mContext));
             sort();
         }
 
         public void saveGlobalState() {
-            TimerObj.putTimersInSharedPrefs(mmPrefs, mTimers);
+            TimerStore.saveTimers(mContext, mTimers);
         }
 
         public void sort() {
@@ -344,8 +344,8 @@ public class TimerFragment extends DeskClockFragment
 
     class TimesUpListAdapter extends TimersListAdapter {
 
-        public TimesUpListAdapter(Context context, SharedPreferences prefs) {
-            super(context, prefs);
+        public TimesUpListAdapter(Context context) {
+            super(context);
         }
 
         @Override
@@ -363,7 +363,11 @@ public class TimerFragment extends DeskClockFragment
         @Override
         public void onRestoreInstanceState(Bundle outState) {
             // This adapter loads a subset
-            TimerObj.getTimersFromSharedPrefs(mmPrefs, mTimers, TimerObj.STATE_TIMESUP);
+            for (TimerObj t : TimerStore.getTimers(mContext)) {
+                if (t.mState == TimerObj.STATE_TIMESUP) {
+                    mTimers.add(t);
+                }
+            }
 
             if (getCount() == 0) {
                 mOnEmptyListListener.onEmptyList();
@@ -378,51 +382,79 @@ public class TimerFragment extends DeskClockFragment
         }
     }
 
-    private final Runnable mClockTick = new Runnable() {
+    // Updates the timers on screen. It runs on a display frame, only at the frames where a
+    // visible timer shows a new second or blinks, or where a timer runs out, and stops when no
+    // timer needs it.
+    private final Choreographer.FrameCallback mClockTick = new Choreographer.FrameCallback() {
         boolean mVisible = true;
         final static int TIME_PERIOD_MS = 1000;
         final static int SPLIT = TIME_PERIOD_MS / 2;
 
         @Override
-        public void run() {
+        public void doFrame(long frameTimeNanos) {
             // Setup for blinking
-            boolean visible = Utils.getTimeNow() % TIME_PERIOD_MS < SPLIT;
+            final long now = Utils.getTimeNow();
+            boolean visible = now % TIME_PERIOD_MS < SPLIT;
             boolean toggle = mVisible != visible;
             mVisible = visible;
+            long nextTickDelay = Long.MAX_VALUE;
             for (int i = 0; i < mAdapter.getCount(); i ++) {
                 TimerObj t = mAdapter.getItem(i);
+                TimerListItem view = (TimerListItem) t.mView;
+                // Views that are not on screen are set up again when they come back, but every
+                // timer still needs its state updated
+                boolean onScreen = view != null && view.getWindowToken() != null;
                 if (t.mState == TimerObj.STATE_RUNNING || t.mState == TimerObj.STATE_TIMESUP) {
                     long timeLeft = t.updateTimeLeft(false);
-                    if (t.mView != null) {
-                        ((TimerListItem)(t.mView)).setTime(timeLeft, false);
-                        // Update button every 1/2 second
-                        if (toggle) {
-                            ImageButton leftButton = (ImageButton)
-                                  t.mView.findViewById(R.id.timer_plus_one);
-                            leftButton.setEnabled(canAddMinute(t));
-                        }
+                    if (onScreen) {
+                        view.setTime(timeLeft, false);
+                        view.mPlusOneButton.setEnabled(canAddMinute(t));
+                        nextTickDelay = Math.min(nextTickDelay, getTimeToNextSecond(timeLeft));
+                    } else if (timeLeft > 0) {
+                        // Wake up when it is time to move it to the times up state
+                        nextTickDelay = Math.min(nextTickDelay, timeLeft);
                     }
                 }
                 if (t.mTimeLeft <= 0 && t.mState != TimerObj.STATE_DONE
                         && t.mState != TimerObj.STATE_RESTART) {
                     t.mState = TimerObj.STATE_TIMESUP;
                     TimerFragment.this.setTimerButtons(t);
-                    if (t.mView != null) {
-                        ((TimerListItem)(t.mView)).timesUp();
+                    if (onScreen) {
+                        view.timesUp();
                     }
                 }
+                if (!onScreen) {
+                    continue;
+                }
 
                 // The blinking
-                if (toggle && t.mView != null) {
-                    if (t.mState == TimerObj.STATE_TIMESUP) {
-                        ((TimerListItem)(t.mView)).setCircleBlink(mVisible);
-                    }
-                    if (t.mState == TimerObj.STATE_STOPPED) {
-                        ((TimerListItem)(t.mView)).setTextBlink(mVisible);
+                if (t.mState == TimerObj.STATE_TIMESUP || t.mState == TimerObj.STATE_STOPPED) {
+                    if (toggle) {
+                        if (t.mState == TimerObj.STATE_TIMESUP) {
+                            view.setCircleBlink(mVisible);
+                        } else {
+                            view.setTextBlink(mVisible);
+                        }
                     }
+                    nextTickDelay = Math.min(nextTickDelay, SPLIT - now % SPLIT);
                 }
             }
-            mTimersList.postDelayed(mClockTick, 20);
+            if (nextTickDelay != Long.MAX_VALUE) {
+                Choreographer.getInstance().postFrameCallbackDelayed(mClockTick, nextTickDelay);
+            }
+        }
+
+        /**
+         * @return time until the seconds shown for timeLeft change. Positive times are shown
+         *         rounded up and negative times rounded towards zero, so either way the display
+         *         changes when timeLeft reaches the next lower multiple of a second.
+         */
+        private long getTimeToNextSecond(long timeLeft) {
+            long remainder = (timeLeft - 1) % TIME_PERIOD_MS;
+            if (remainder < 0) {
+                remainder += TIME_PERIOD_MS;
+            }
+            return remainder + 1;
         }
     };
 
@@ -487,8 +519,9 @@ public class TimerFragment extends DeskClockFragment
                 }
                 TimerObj t = new TimerObj(timerLength * 1000);
                 t.mState = TimerObj.STATE_RUNNING;
-                mAdapter.addTimer(t);
+                // Saving the timer gives it its id, so it goes first
                 updateTimersState(t, Timers.START_TIMER);
+                mAdapter.addTimer(t);
                 gotoTimersView();
                 mTimerSetup.reset(); // Make sure the setup is cleared for next time
 
@@ -546,7 +579,7 @@ public class TimerFragment extends DeskClockFragment
         super.onResume();
         mPrefs.registerOnSharedPreferenceChangeListener(this);
 
-        mAdapter = createAdapter(getActivity(), mPrefs);
+        mAdapter = createAdapter(getActivity());
         mAdapter.onRestoreInstanceState(null);
 
         LayoutParams params;
@@ -906,11 +939,11 @@ public class TimerFragment extends DeskClockFragment
         if (a == null || t == null || t.mView == null) {
             return;
         }
-        ImageButton leftButton = (ImageButton) t.mView.findViewById(R.id.timer_plus_one);
-        CountingTimerView countingTimerView = (CountingTimerView)
-                t.mView.findViewById(R.id.timer_time_text);
-        TextView stop = (TextView) t.mView.findViewById(R.id.timer_stop);
-        ImageButton delete = (ImageButton) t.mView.findViewById(R.id.timer_delete);
+        TimerListItem item = (TimerListItem) t.mView;
+        ImageButton leftButton = item.mPlusOneButton;
+        CountingTimerView countingTimerView = item.mTimerText;
+        TextView stop = item.mStopButton;
+        ImageButton delete = item.mDeleteButton;
         // Make sure the delete button is visible in case the view is recycled.
         delete.setVisibility(View.VISIBLE);
 
@@ -980,18 +1013,28 @@ public class TimerFragment extends DeskClockFragment
 
     // Starts the ticks that animate the timers.
     private void startClockTicks() {
-        mTimersList.postDelayed(mClockTick, 20);
         mTicking = true;
+        updateClockTicks();
     }
 
     // Stops the ticks that animate the timers.
     private void stopClockTicks() {
         if (mTicking) {
-            mTimersList.removeCallbacks(mClockTick);
+            Choreographer.getInstance().removeFrameCallback(mClockTick);
             mTicking = false;
         }
     }
 
+    // Runs a tick on the next frame so that it can work out when the following one is due.
+    // Called whenever a timer or its view changes, as the ticks may have stopped.
+    private void updateClockTicks() {
+        if (mTicking) {
+            Choreographer choreographer = Choreographer.getInstance();
+            choreographer.removeFrameCallback(mClockTick);
+            choreographer.postFrameCallback(mClockTick);
+        }
+    }
+
     private boolean canAddMinute(TimerObj t) {
         return TimerObj.MAX_TIMER_LENGTH - t.mTimeLeft > TimerObj.MINUTE_IN_MILLIS ? true : false;
     }
@@ -1000,7 +1043,7 @@ public class TimerFragment extends DeskClockFragment
         if (Timers.DELETE_TIMER.equals(action)) {
             deleteTimer(t);
         } else {
-            t.writeToSharedPref(mPrefs);
+            TimerStore.saveTimer(getActivity(), t);
         }
         Intent i = new Intent();
         i.setAction(action);
@@ -1008,6 +1051,7 @@ public class TimerFragment extends DeskClockFragment
         // Make sure the receiver is getting the intent ASAP.
         i.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
         getActivity().sendBroadcast(i);
+        updateClockTicks();
     }
 
     private void cancelTimerNotification(int timerId) {
@@ -1026,8 +1070,9 @@ public class TimerFragment extends DeskClockFragment
     }
 
     public void restartAdapter() {
-        mAdapter = createAdapter(getActivity(), mPrefs);
+        mAdapter = createAdapter(getActivity());
         mAdapter.onRestoreInstanceState(null);
+        updateClockTicks();
     }
 
     // Process extras that were sent to the app and were intended for the timer
@@ -1050,9 +1095,10 @@ public class TimerFragment extends DeskClockFragment
                 SharedPreferences.Editor editor = mPrefs.edit();
                 editor.putBoolean(key, false);
                 editor.apply();
-                mAdapter = createAdapter(getActivity(), mPrefs);
+                mAdapter = createAdapter(getActivity());
                 mAdapter.onRestoreInstanceState(null);
                 mTimersList.setAdapter(mAdapter);
+                updateClockTicks();
             }
         }
     }
@@ -20,7 +20,9 @@ import android.content.Context;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
+import android.widget.ImageButton;
 import android.widget.LinearLayout;
+import android.widget.TextView;
 
 import com.android.deskclock.CircleTimerView;
 import com.android.deskclock.R;
@@ -30,6 +32,10 @@ public class TimerListItem extends LinearLayout {
 
     CountingTimerView mTimerText;
     CircleTimerView mCircleView;
+    // Buttons updated as the timer ticks, looked up once
+    ImageButton mPlusOneButton;
+    TextView mStopButton;
+    ImageButton mDeleteButton;
 
     long mTimerLength;
 
@@ -42,6 +48,10 @@ public class TimerListItem extends LinearLayout {
         LayoutInflater layoutInflater =
                 (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         layoutInflater.inflate(R.layout.timer_list_item, this);
+        mTimerText = (CountingTimerView) findViewById(R.id.timer_time_text);
+        mPlusOneButton = (ImageButton) findViewById(R.id.timer_plus_one);
+        mStopButton = (TextView) findViewById(R.id.timer_stop);
+        mDeleteButton = (ImageButton) findViewById(R.id.timer_delete);
     }
 
     @Override
@@ -16,26 +16,24 @@
 
 package com.android.deskclock.timer;
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.util.Log;
 import android.view.View;
 
 import com.android.deskclock.R;
 import com.android.deskclock.Utils;
+import com.android.deskclock.provider.ClockContract;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 
-public class TimerObj implements Parcelable {
+public class TimerObj implements Parcelable, ClockContract.TimersColumns {
 
-    private static final String TAG = "TimerObj";
     // Max timer length is 9 hours + 99 minutes + 9 seconds
     public static final long MAX_TIMER_LENGTH = (9 * 3600 + 99 * 60  + 99) * 1000;
     public static final long MINUTE_IN_MILLIS = 60 * 1000;
@@ -57,16 +55,8 @@ public class TimerObj implements Parcelable {
     public static final int STATE_RESTART = 5;
     public static final int STATE_DELETED = 6;
 
-    private static final String PREF_TIMER_ID = "timer_id_";
-    private static final String PREF_START_TIME  = "timer_start_time_";
-    private static final String PREF_TIME_LEFT = "timer_time_left_";
-    private static final String PREF_ORIGINAL_TIME = "timer_original_timet_";
-    private static final String PREF_SETUP_TIME = "timer_setup_timet_";
-    private static final String PREF_STATE = "timer_state_";
-    private static final String PREF_LABEL = "timer_label_";
-    private static final String PREF_DELETE_AFTER_USE = "delete_after_use_";
-
-    private static final String PREF_TIMERS_LIST = "timers_list";
+    // Id of a timer that was never saved, TimerStore gives it one on its first save
+    public static final int INVALID_ID = -1;
 
     public static final Parcelable.Creator<TimerObj> CREATOR = new Parcelable.Creator<TimerObj>() {
         @Override
@@ -80,77 +70,54 @@ public class TimerObj implements Parcelable {
         }
     };
 
-    public void writeToSharedPref(SharedPreferences prefs) {
-        SharedPreferences.Editor editor = prefs.edit();
-        String key = PREF_TIMER_ID + Integer.toString(mTimerId);
-        String id = Integer.toString(mTimerId);
-        editor.putInt (key, mTimerId);
-        key = PREF_START_TIME + id;
-        editor.putLong (key, mStartTime);
-        key = PREF_TIME_LEFT + id;
-        editor.putLong (key, mTimeLeft);
-        key = PREF_ORIGINAL_TIME + id;
-        editor.putLong (key, mOriginalLength);
-        key = PREF_SETUP_TIME + id;
-        editor.putLong (key, mSetupLength);
-        key = PREF_STATE + id;
-        editor.putInt (key, mState);
-        Set <String> timersList = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>());
-        timersList.add(id);
-        editor.putStringSet(PREF_TIMERS_LIST, timersList);
-        key = PREF_LABEL + id;
-        editor.putString(key, mLabel);
-        key = PREF_DELETE_AFTER_USE + id;
-        editor.putBoolean(key, mDeleteAfterUse);
-        editor.apply();
-    }
-
-
-    public void readFromSharedPref(SharedPreferences prefs) {
-        String id = Integer.toString(mTimerId);
-        String key = PREF_START_TIME + id;
-        mStartTime = prefs.getLong(key, 0);
-        key = PREF_TIME_LEFT + id;
-        mTimeLeft = prefs.getLong(key, 0);
-        key = PREF_ORIGINAL_TIME + id;
-        mOriginalLength = prefs.getLong(key, 0);
-        key = PREF_SETUP_TIME + id;
-        mSetupLength = prefs.getLong(key, 0);
-        key = PREF_STATE + id;
-        mState = prefs.getInt(key, 0);
-        key = PREF_LABEL + id;
-        mLabel = prefs.getString(key, "");
-        key = PREF_DELETE_AFTER_USE + id;
-        mDeleteAfterUse = prefs.getBoolean(key, false);
-    }
+    /**
+     * The default sort order for this table, newest timers first
+     */
+    private static final String DEFAULT_SORT_ORDER = _ID + " DESC";
+
+    private static final String[] QUERY_COLUMNS = {
+            _ID,
+            START_TIME,
+            TIME_LEFT,
+            ORIGINAL_LENGTH,
+            SETUP_LENGTH,
+            STATE,
+            LABEL,
+            DELETE_AFTER_USE
+    };
 
-    public void deleteFromSharedPref(SharedPreferences prefs) {
-        SharedPreferences.Editor editor = prefs.edit();
-        String key = PREF_TIMER_ID + Integer.toString(mTimerId);
-        String id = Integer.toString(mTimerId);
-        editor.remove (key);
-        key = PREF_START_TIME + id;
-        editor.remove (key);
-        key = PREF_TIME_LEFT + id;
-        editor.remove (key);
-        key = PREF_ORIGINAL_TIME + id;
-        editor.remove (key);
-        key = PREF_SETUP_TIME + id;
-        editor.remove (key);
-        key = PREF_STATE + id;
-        editor.remove (key);
-        Set <String> timersList = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>());
-        timersList.remove(id);
-        editor.putStringSet(PREF_TIMERS_LIST, timersList);
-        key = PREF_LABEL + id;
-        editor.remove(key);
-        key = PREF_DELETE_AFTER_USE + id;
-        editor.remove(key);
-        editor.commit();
-        //dumpTimersFromSharedPrefs(prefs);
+    /**
+     * These save calls to cursor.getColumnIndexOrThrow()
+     * THEY MUST BE KEPT IN SYNC WITH ABOVE QUERY COLUMNS
+     */
+    private static final int ID_INDEX = 0;
+    private static final int START_TIME_INDEX = 1;
+    private static final int TIME_LEFT_INDEX = 2;
+    private static final int ORIGINAL_LENGTH_INDEX = 3;
+    private static final int SETUP_LENGTH_INDEX = 4;
+    private static final int STATE_INDEX = 5;
+    private static final int LABEL_INDEX = 6;
+    private static final int DELETE_AFTER_USE_INDEX = 7;
+
+    private static final int COLUMN_COUNT = DELETE_AFTER_USE_INDEX + 1;
+
+    public static ContentValues createContentValues(TimerObj timer) {
+        ContentValues values = new ContentValues(COLUMN_COUNT);
+        values.put(_ID, timer.mTimerId);
+        values.put(START_TIME, timer.mStartTime);
+        values.put(TIME_LEFT, timer.mTimeLeft);
+        values.put(ORIGINAL_LENGTH, timer.mOriginalLength);
+        values.put(SETUP_LENGTH, timer.mSetupLength);
+        values.put(STATE, timer.mState);
+        values.put(LABEL, timer.mLabel == null ? "" : timer.mLabel);
+        values.put(DELETE_AFTER_USE, timer.mDeleteAfterUse ? 1 : 0);
+        return values;
+    }
+
+    public static Uri getUri(int timerId) {
+        return ContentUris.withAppendedId(CONTENT_URI, timerId);
     }
 
-
     @Override
     public int describeContents() {
         return 0;
@@ -177,6 +144,17 @@ public class TimerObj implements Parcelable {
         mLabel = p.readString();
     }
 
+    private TimerObj(Cursor c) {
+        mTimerId = c.getInt(ID_INDEX);
+        mStartTime = c.getLong(START_TIME_INDEX);
+        mTimeLeft = c.getLong(TIME_LEFT_INDEX);
+        mOriginalLength = c.getLong(ORIGINAL_LENGTH_INDEX);
+        mSetupLength = c.getLong(SETUP_LENGTH_INDEX);
+        mState = c.getInt(STATE_INDEX);
+        mLabel = c.getString(LABEL_INDEX);
+        mDeleteAfterUse = c.getInt(DELETE_AFTER_USE_INDEX) == 1;
+    }
+
     public TimerObj() {
         this(0);
     }
@@ -191,10 +169,7 @@ public class TimerObj implements Parcelable {
     }
 
     private void init (long length) {
-        /* TODO: mTimerId must avoid StopwatchService.NOTIFICATION_ID,
-         * TimerReceiver.IN_USE_NOTIFICATION_ID, and alarm ID's (which seem to be 1, 2, ..)
-         */
-        mTimerId = (int) Utils.getTimeNow();
+        mTimerId = INVALID_ID;
         mStartTime = Utils.getTimeNow();
         mTimeLeft = mOriginalLength = mSetupLength = length;
         mLabel = "";
@@ -238,75 +213,23 @@ public class TimerObj implements Parcelable {
     }
 
 
-    public static void getTimersFromSharedPrefs(
-            SharedPreferences prefs, ArrayList<TimerObj> timers) {
-        Object[] timerStrings =
-                prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>()).toArray();
-        if (timerStrings.length > 0) {
-            for (int i = 0; i < timerStrings.length; i++) {
-                TimerObj t = new TimerObj();
-                t.mTimerId = Integer.parseInt((String)timerStrings[i]);
-                t.readFromSharedPref(prefs);
-                timers.add(t);
-            }
-            Collections.sort(timers, new Comparator<TimerObj>() {
-                @Override
-                public int compare(TimerObj timerObj1, TimerObj timerObj2) {
-                   return timerObj2.mTimerId - timerObj1.mTimerId;
-                }
-            });
+    /**
+     * Add every timer in the database to timers, newest first.
+     */
+    public static void getTimersFromDatabase(
+            ContentResolver contentResolver, ArrayList<TimerObj> timers) {
+        Cursor cursor = contentResolver.query(CONTENT_URI, QUERY_COLUMNS,
+                null, null, DEFAULT_SORT_ORDER);
+        if (cursor == null) {
+            return;
         }
-    }
 
-    public static void getTimersFromSharedPrefs(
-            SharedPreferences prefs, ArrayList<TimerObj> timers, int match) {
-        Object[] timerStrings = prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>())
-                .toArray();
-        if (timerStrings.length > 0) {
-            for (int i = 0; i < timerStrings.length; i++) {
-                TimerObj t = new TimerObj();
-                t.mTimerId = Integer.parseInt((String) timerStrings[i]);
-                t.readFromSharedPref(prefs);
-                if (t.mState == match) {
-                    timers.add(t);
-                }
+        try {
+            while (cursor.moveToNext()) {
+                timers.add(new TimerObj(cursor));
             }
+        } finally {
+            cursor.close();
         }
     }
-
-    public static void putTimersInSharedPrefs(
-            SharedPreferences prefs, ArrayList<TimerObj> timers) {
-        if (timers.size() > 0) {
-            for (int i = 0; i < timers.size(); i++) {
-                TimerObj t = timers.get(i);
-                timers.get(i).writeToSharedPref(prefs);
-            }
-        }
-    }
-
-    public static void dumpTimersFromSharedPrefs(
-            SharedPreferences prefs) {
-        Object[] timerStrings =
-                prefs.getStringSet(PREF_TIMERS_LIST, new HashSet<String>()).toArray();
-        Log.v(TAG,"--------------------- timers list in shared prefs");
-        if (timerStrings.length > 0) {
-            for (int i = 0; i < timerStrings.length; i++) {
-                int id = Integer.parseInt((String)timerStrings[i]);
-                Log.v(TAG,"---------------------timer  " + (i + 1) + ": id - " + id);
-            }
-        }
-    }
-
-    public static void resetTimersInSharedPrefs(SharedPreferences prefs) {
-        ArrayList<TimerObj> timers = new  ArrayList<TimerObj>();
-        getTimersFromSharedPrefs(prefs, timers);
-        Iterator<TimerObj> i = timers.iterator();
-        while(i.hasNext()) {
-            TimerObj t = i.next();
-            t.mState = TimerObj.STATE_RESTART;
-            t.mTimeLeft = t. mOriginalLength = t.mSetupLength;
-            t.writeToSharedPref(prefs);
-        }
-    }
-
 }
@@ -27,13 +27,14 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.android.deskclock.AsyncHandler;
 import com.android.deskclock.DeskClock;
 import com.android.deskclock.R;
 import com.android.deskclock.TimerRingService;
 import com.android.deskclock.Utils;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Set;
 
 public class TimerReceiver extends BroadcastReceiver {
     private static final String TAG = "TimerReceiver";
@@ -42,10 +43,31 @@ public class TimerReceiver extends BroadcastReceiver {
     // Must also be different than StopwatchService.NOTIFICATION_ID
     private static final int IN_USE_NOTIFICATION_ID = Integer.MAX_VALUE - 2;
 
+    // A timer needs more time left than this to schedule the next in-use notification update.
+    private static final long MIN_TIME_LEFT_FOR_UPDATE = 60;
+
     ArrayList<TimerObj> mTimers;
 
     @Override
     public void onReceive(final Context context, final Intent intent) {
+        handleIntent(context, intent);
+
+        // Timer changes are written in the background. Hold the broadcast, and with it the
+        // wake lock of the alarm that sent it, until they are in the database.
+        final PendingResult result = goAsync();
+        AsyncHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TimerStore.flush(context);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    private void handleIntent(final Context context, final Intent intent) {
         if (Timers.LOGGING) {
             Log.v(TAG, "Received intent " + intent.toString());
         }
@@ -56,12 +78,9 @@ public class TimerReceiver extends BroadcastReceiver {
             return;
         }
 
-        // Get the updated timers data.
-        if (mTimers == null) {
-            mTimers = new ArrayList<TimerObj> ();
-        }
+        // Get the timers data, shared with the rest of the app and only read once.
+        mTimers = TimerStore.getTimers(context);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        TimerObj.getTimersFromSharedPrefs(prefs, mTimers);
 
         // These actions do not provide a timer ID, but do use the timers data
         if (Timers.NOTIF_IN_USE_SHOW.equals(actionType)) {
@@ -88,7 +107,7 @@ public class TimerReceiver extends BroadcastReceiver {
             Log.d(TAG, "OnReceive:intent without Timer data for " + actionType);
         }
 
-        TimerObj t = Timers.findTimer(mTimers, timerId);
+        TimerObj t = TimerStore.getTimer(context, timerId);
 
         if (Timers.TIMES_UP.equals(actionType)) {
             // Find the timer (if it doesn't exists, it was probably deleted).
@@ -98,7 +117,7 @@ public class TimerReceiver extends BroadcastReceiver {
             }
 
             t.mState = TimerObj.STATE_TIMESUP;
-            t.writeToSharedPref(prefs);
+            TimerStore.saveTimer(context, t);
             // Play ringtone by using TimerRingService service with a default alarm.
             Log.d(TAG, "playing ringtone");
             Intent si = new Intent();
@@ -106,7 +125,7 @@ public class TimerReceiver extends BroadcastReceiver {
             context.startService(si);
 
             // Update the in-use notification
-            if (getNextRunningTimer(mTimers, false, Utils.getTimeNow()) == null) {
+            if (TimerStore.getNextExpiringTimer(context) == null) {
                 // Found no running timers.
                 cancelInUseNotification(context);
             } else {
@@ -136,7 +155,7 @@ public class TimerReceiver extends BroadcastReceiver {
             // Update timer state
             t.mState = t.getDeleteAfterUse() ? TimerObj.STATE_DELETED : TimerObj.STATE_DONE;
             t.mTimeLeft = t.mOriginalLength - (Utils.getTimeNow() - t.mStartTime);
-            t.writeToSharedPref(prefs);
+            TimerStore.saveTimer(context, t);
 
             // Flag to tell DeskClock to re-sync with the database
             prefs.edit().putBoolean(Timers.FROM_NOTIFICATION, true).apply();
@@ -145,7 +164,7 @@ public class TimerReceiver extends BroadcastReceiver {
 
             // Done with timer - delete from data base
             if (t.getDeleteAfterUse()) {
-                t.deleteFromSharedPref(prefs);
+                TimerStore.deleteTimer(context, t);
             }
 
             // Stop Ringtone if no timers are in times-up status
@@ -164,7 +183,7 @@ public class TimerReceiver extends BroadcastReceiver {
             t.mState = TimerObj.STATE_RUNNING;
             t.mStartTime = Utils.getTimeNow();
             t.mTimeLeft = t. mOriginalLength = TimerObj.MINUTE_IN_MILLIS;
-            t.writeToSharedPref(prefs);
+            TimerStore.saveTimer(context, t);
 
             // Flag to tell DeskClock to re-sync with the database
             prefs.edit().putBoolean(Timers.FROM_NOTIFICATION, true).apply();
@@ -191,7 +210,7 @@ public class TimerReceiver extends BroadcastReceiver {
     }
 
     private void stopRingtoneIfNoTimesup(final Context context) {
-        if (Timers.findExpiredTimer(mTimers) == null) {
+        if (TimerStore.getTimersInState(context, TimerObj.STATE_TIMESUP).isEmpty()) {
             // Stop ringtone
             Log.d(TAG, "stopping ringtone");
             Intent si = new Intent();
@@ -200,11 +219,11 @@ public class TimerReceiver extends BroadcastReceiver {
         }
     }
 
-    // Scan all timers and find the one that will expire next.
+    // Find the timer that will expire next from the expiry queue of the timer store.
     // Tell AlarmManager to send a "Time's up" message to this receiver when this timer expires.
     // If no timer exists, clear "time's up" message.
     private void updateNextTimesup(Context context) {
-        TimerObj t = getNextRunningTimer(mTimers, false, Utils.getTimeNow());
+        TimerObj t = TimerStore.getNextExpiringTimer(context);
         long nextTimesup = (t == null) ? -1 : t.getTimesupTime();
         int timerId = (t == null) ? -1 : t.mTimerId;
 
@@ -237,8 +256,11 @@ public class TimerReceiver extends BroadcastReceiver {
     private void showInUseNotification(final Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         boolean appOpen = prefs.getBoolean(Timers.NOTIF_APP_OPEN, false);
-        ArrayList<TimerObj> timersInUse = Timers.timersInUse(mTimers);
-        int numTimersInUse = timersInUse.size();
+        Set<TimerObj> runningTimers =
+                TimerStore.getTimersInState(context, TimerObj.STATE_RUNNING);
+        Set<TimerObj> stoppedTimers =
+                TimerStore.getTimersInState(context, TimerObj.STATE_STOPPED);
+        int numTimersInUse = runningTimers.size() + stoppedTimers.size();
 
         if (appOpen || numTimersInUse == 0) {
             return;
@@ -247,8 +269,9 @@ public class TimerReceiver extends BroadcastReceiver {
         String title, contentText;
         Long nextBroadcastTime = null;
         long now = Utils.getTimeNow();
-        if (timersInUse.size() == 1) {
-            TimerObj timer = timersInUse.get(0);
+        if (numTimersInUse == 1) {
+            TimerObj timer = (runningTimers.isEmpty() ? stoppedTimers : runningTimers)
+                    .iterator().next();
             boolean timerIsTicking = timer.isTicking();
             String label = timer.getLabelOrDefault(context);
             title = timerIsTicking ? label : context.getString(R.string.timer_stopped);
@@ -258,7 +281,7 @@ public class TimerReceiver extends BroadcastReceiver {
                 nextBroadcastTime = getBroadcastTime(now, timeLeft);
             }
         } else {
-            TimerObj timer = getNextRunningTimer(timersInUse, false, now);
+            TimerObj timer = TimerStore.getNextExpiringTimer(context);
             if (timer == null) {
                 // No running timers.
                 title = String.format(
@@ -273,7 +296,8 @@ public class TimerReceiver extends BroadcastReceiver {
                 contentText = String.format(context.getString(R.string.next_timer_notif),
                         buildTimeRemaining(context, timeLeft));
                 if (timeLeft <= TimerObj.MINUTE_IN_MILLIS) {
-                    TimerObj timerWithUpdate = getNextRunningTimer(timersInUse, true, now);
+                    TimerObj timerWithUpdate = TimerStore.getNextExpiringTimerAfter(context,
+                            now + MIN_TIME_LEFT_FOR_UPDATE);
                     if (timerWithUpdate != null) {
                         completionTime = timerWithUpdate.getTimesupTime();
                         timeLeft = completionTime - now;
@@ -372,31 +396,6 @@ public class TimerReceiver extends BroadcastReceiver {
         return String.format(formats[index], hourSeq, minSeq);
     }
 
-    private TimerObj getNextRunningTimer(
-            ArrayList<TimerObj> timers, boolean requireNextUpdate, long now) {
-        long nextTimesup = Long.MAX_VALUE;
-        boolean nextTimerFound = false;
-        Iterator<TimerObj> i = timers.iterator();
-        TimerObj t = null;
-        while(i.hasNext()) {
-            TimerObj tmp = i.next();
-            if (tmp.mState == TimerObj.STATE_RUNNING) {
-                long timesupTime = tmp.getTimesupTime();
-                long timeLeft = timesupTime - now;
-                if (timesupTime < nextTimesup && (!requireNextUpdate || timeLeft > 60) ) {
-                    nextTimesup = timesupTime;
-                    nextTimerFound = true;
-                    t = tmp;
-                }
-            }
-        }
-        if (nextTimerFound) {
-            return t;
-        } else {
-            return null;
-        }
-    }
-
     private void cancelInUseNotification(final Context context) {
         NotificationManager notificationManager =
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -404,7 +403,8 @@ public class TimerReceiver extends BroadcastReceiver {
     }
 
     private void showTimesUpNotification(final Context context) {
-        for (TimerObj timerObj : Timers.timersInTimesUp(mTimers) ) {
+        for (TimerObj timerObj :
+                TimerStore.getTimersInState(context, TimerObj.STATE_TIMESUP)) {
             showTimesUpNotification(context, timerObj);
         }
     }
@@ -463,7 +463,8 @@ public class TimerReceiver extends BroadcastReceiver {
     }
 
     private void cancelTimesUpNotification(final Context context) {
-        for (TimerObj timerObj : Timers.timersInTimesUp(mTimers) ) {
+        for (TimerObj timerObj :
+                TimerStore.getTimersInState(context, TimerObj.STATE_TIMESUP)) {
             cancelTimesUpNotification(context, timerObj);
         }
     }
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.timer;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import com.android.deskclock.AsyncHandler;
+import com.android.deskclock.Log;
+import com.android.deskclock.provider.ClockContract;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory model of the timers, shared by everything in the process that shows or changes
+ * them. The timers are read from the database once, then changed in place by their users, who
+ * save or delete them through this class. Changes are written to the database in the
+ * background: the latest values of every changed timer are collected and written together in
+ * a single batch, so a burst of changes costs one transaction. A batch that fails is put back
+ * and retried a little later. Broadcast receivers {@link #flush} before they finish, so their
+ * changes are written while the broadcast keeps the process alive.
+ *
+ * New timers get their id on their first save. Ids count up through the range set by
+ * {@link Timers#FIRST_TIMER_ID} and {@link Timers#LAST_TIMER_ID}, and are not handed out again
+ * after a restart: blocks of ids are reserved in shared preferences before they are used.
+ */
+public final class TimerStore {
+    // Highest id reserved for new timers, plus one
+    private static final String PREF_TIMER_ID_LIMIT = "timer_id_limit";
+
+    // Number of ids reserved at a time, so most new timers don't write the preferences
+    private static final int TIMER_ID_BLOCK_SIZE = 64;
+
+    // Delay before writing the changes of a failed batch again
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    // Every timer, as of its last save. Null until first used. Guarded by TimerStore.class.
+    private static TimerCollection sTimers;
+
+    // Id of the next new timer, and the end of the reserved ids. Guarded by TimerStore.class.
+    private static int sNextTimerId;
+    private static int sTimerIdLimit;
+
+    // Rows waiting to be written, by timer id. Guarded by TimerStore.class.
+    private static final LinkedHashMap<Integer, ContentValues> sPendingSaves =
+            new LinkedHashMap<Integer, ContentValues>();
+    private static final LinkedHashSet<Integer> sPendingDeletes = new LinkedHashSet<Integer>();
+
+    // True while a write is scheduled or running. Guarded by TimerStore.class.
+    private static boolean sWriteScheduled = false;
+
+    // Held while a batch is taken from the pending changes and written, so a flush can wait
+    // for a batch that is being written
+    private static final Object sWriteLock = new Object();
+
+    /**
+     * Get the timers, reading them from the database on first use. The list is shared and must
+     * only be changed through {@link #saveTimer} and {@link #deleteTimer}.
+     *
+     * @param context to read the database with
+     * @return every timer, newest first
+     */
+    public static synchronized ArrayList<TimerObj> getTimers(Context context) {
+        return getTimersLocked(context).getTimers();
+    }
+
+    private static TimerCollection getTimersLocked(Context context) {
+        if (sTimers == null) {
+            final ArrayList<TimerObj> timers = new ArrayList<TimerObj>();
+            TimerObj.getTimersFromDatabase(context.getContentResolver(), timers);
+
+            sTimers = new TimerCollection();
+            sNextTimerId = getPrefs(context).getInt(PREF_TIMER_ID_LIMIT, Timers.FIRST_TIMER_ID);
+            for (TimerObj timer : timers) {
+                sTimers.append(timer);
+                if (timer.mTimerId >= sNextTimerId && timer.mTimerId <= Timers.LAST_TIMER_ID) {
+                    sNextTimerId = timer.mTimerId + 1;
+                }
+            }
+            sTimerIdLimit = sNextTimerId;
+        }
+        return sTimers;
+    }
+
+    /**
+     * @return timer with the id, or null if there is none
+     */
+    public static synchronized TimerObj getTimer(Context context, int timerId) {
+        return getTimersLocked(context).get(timerId);
+    }
+
+    /**
+     * @return timers in the state, as of their last save. The set is shared and must not be
+     *         changed.
+     */
+    public static synchronized Set<TimerObj> getTimersInState(Context context, int state) {
+        return getTimersLocked(context).getTimersInState(state);
+    }
+
+    /**
+     * @return running timer that goes off first, as of the last save, or null if no timer is
+     *         running
+     */
+    public static synchronized TimerObj getNextExpiringTimer(Context context) {
+        return getTimersLocked(context).getNextExpiringTimer();
+    }
+
+    /**
+     * @return running timer that goes off first strictly after time, as of the last save, or
+     *         null if there is none
+     */
+    public static synchronized TimerObj getNextExpiringTimerAfter(Context context, long time) {
+        return getTimersLocked(context).getNextExpiringTimerAfter(time);
+    }
+
+    /**
+     * Add the timer if it is new, giving it an id if it has none, and schedule a write of its
+     * current values.
+     */
+    public static synchronized void saveTimer(Context context, TimerObj timer) {
+        saveTimerLocked(context, timer);
+        scheduleWriteLocked(context);
+    }
+
+    /**
+     * Schedule a write of the current values of every timer in timers.
+     */
+    public static synchronized void saveTimers(Context context, List<TimerObj> timers) {
+        for (TimerObj timer : timers) {
+            saveTimerLocked(context, timer);
+        }
+        scheduleWriteLocked(context);
+    }
+
+    /**
+     * Remove the timer and schedule the deletion of its row.
+     */
+    public static synchronized void deleteTimer(Context context, TimerObj timer) {
+        getTimersLocked(context).remove(timer.mTimerId);
+        sPendingSaves.remove(timer.mTimerId);
+        sPendingDeletes.add(timer.mTimerId);
+        scheduleWriteLocked(context);
+    }
+
+    /**
+     * Bring every timer back to its setup length, stopped. Used after a reboot since timers
+     * run on the elapsed realtime clock.
+     */
+    public static synchronized void resetTimers(Context context) {
+        final TimerCollection timers = getTimersLocked(context);
+        for (TimerObj timer : timers.getTimers()) {
+            timer.mState = TimerObj.STATE_RESTART;
+            timer.mTimeLeft = timer.mOriginalLength = timer.mSetupLength;
+            timers.update(timer);
+            sPendingSaves.put(timer.mTimerId, TimerObj.createContentValues(timer));
+        }
+        scheduleWriteLocked(context);
+    }
+
+    /**
+     * Write the pending changes on the calling thread, after any batch already being written.
+     * Must not be called on the main thread. Changes that fail to write are still retried later.
+     */
+    public static void flush(Context context) {
+        writePendingChanges(context.getApplicationContext().getContentResolver());
+    }
+
+    private static void saveTimerLocked(Context context, TimerObj timer) {
+        final TimerCollection timers = getTimersLocked(context);
+        if (timer.mTimerId == TimerObj.INVALID_ID) {
+            timer.mTimerId = allocateTimerIdLocked(timers, context);
+        }
+        timers.update(timer);
+        sPendingDeletes.remove(timer.mTimerId);
+        sPendingSaves.put(timer.mTimerId, TimerObj.createContentValues(timer));
+    }
+
+    private static int allocateTimerIdLocked(TimerCollection timers, Context context) {
+        int timerId;
+        do {
+            if (sNextTimerId > Timers.LAST_TIMER_ID) {
+                // The range is used up, start over and skip the ids still in use
+                sNextTimerId = sTimerIdLimit = Timers.FIRST_TIMER_ID;
+            }
+            timerId = sNextTimerId++;
+        } while (timers.contains(timerId));
+
+        if (sNextTimerId > sTimerIdLimit) {
+            sTimerIdLimit = (int) Math.min((long) sNextTimerId + TIMER_ID_BLOCK_SIZE,
+                    (long) Timers.LAST_TIMER_ID + 1);
+            getPrefs(context).edit().putInt(PREF_TIMER_ID_LIMIT, sTimerIdLimit).apply();
+        }
+        return timerId;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    private static void scheduleWriteLocked(Context context) {
+        if (sWriteScheduled || (sPendingSaves.isEmpty() && sPendingDeletes.isEmpty())) {
+            return;
+        }
+        sWriteScheduled = true;
+
+        executeWrite(context.getApplicationContext().getContentResolver());
+    }
+
+    private static void executeWrite(final ContentResolver cr) {
+        AsyncHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                writePendingChanges(cr);
+            }
+        });
+    }
+
+    /**
+     * Write the pending changes until there are none left. Changes made while a batch is being
+     * written go into the next batch. If a batch fails, its changes are put back unless they
+     * were changed again, and written after a delay.
+     */
+    private static void writePendingChanges(final ContentResolver cr) {
+        synchronized (sWriteLock) {
+            while (writePendingBatch(cr)) {
+                // Until nothing is left or a batch fails
+            }
+        }
+    }
+
+    /**
+     * @return true if a batch was written, false if there was nothing to write or it failed
+     */
+    private static boolean writePendingBatch(final ContentResolver cr) {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        final LinkedHashMap<Integer, ContentValues> saves;
+        final LinkedHashSet<Integer> deletes;
+        synchronized (TimerStore.class) {
+            saves = new LinkedHashMap<Integer, ContentValues>(sPendingSaves);
+            deletes = new LinkedHashSet<Integer>(sPendingDeletes);
+            sPendingSaves.clear();
+            sPendingDeletes.clear();
+            if (saves.isEmpty() && deletes.isEmpty()) {
+                sWriteScheduled = false;
+                return false;
+            }
+        }
+
+        for (ContentValues values : saves.values()) {
+            // Inserting a timer that exists replaces its row
+            operations.add(ContentProviderOperation
+                    .newInsert(ClockContract.TimersColumns.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+        for (int timerId : deletes) {
+            operations.add(ContentProviderOperation
+                    .newDelete(TimerObj.getUri(timerId))
+                    .build());
+        }
+        if (ClockContract.applyBatch(cr, operations) != null) {
+            return true;
+        }
+
+        synchronized (TimerStore.class) {
+            for (int timerId : saves.keySet()) {
+                if (!sPendingSaves.containsKey(timerId) && !sPendingDeletes.contains(timerId)) {
+                    sPendingSaves.put(timerId, saves.get(timerId));
+                }
+            }
+            for (int timerId : deletes) {
+                if (!sPendingSaves.containsKey(timerId)) {
+                    sPendingDeletes.add(timerId);
+                }
+            }
+            sWriteScheduled = true;
+        }
+        Log.w("Could not write " + operations.size() + " timer changes, retrying later");
+        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                executeWrite(cr);
+            }
+        }, RETRY_DELAY_MILLIS);
+        return false;
+    }
+
+    private TimerStore() {}
+}
@@ -16,9 +16,6 @@
 
 package com.android.deskclock.timer;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-
 public class Timers {
     // Logging shared by TimerReceiver and TimerAlertFullScreen
     public static final boolean LOGGING = true;
@@ -46,48 +43,9 @@ public class Timers {
 
     public static final String TIMESUP_MODE = "times_up";
 
-    public static TimerObj findTimer(ArrayList<TimerObj> timers, int timerId) {
-        Iterator<TimerObj> i = timers.iterator();
-        while(i.hasNext()) {
-            TimerObj t = i.next();
-            if (t.mTimerId == timerId) {
-                return t;
-            }
-        }
-        return null;
-    }
-    public static TimerObj findExpiredTimer(ArrayList<TimerObj> timers) {
-        Iterator<TimerObj> i = timers.iterator();
-        while(i.hasNext()) {
-            TimerObj t = i.next();
-            if (t.mState == TimerObj.STATE_TIMESUP) {
-                return t;
-            }
-        }
-        return null;
-    }
-
-    public static ArrayList<TimerObj> timersInUse(ArrayList<TimerObj> timers) {
-        ArrayList<TimerObj> result = (ArrayList<TimerObj>) timers.clone();
-        Iterator<TimerObj> it = result.iterator();
-        while(it.hasNext()) {
-            TimerObj timer = it.next();
-            if (!timer.isInUse()) {
-                it.remove();
-            }
-        }
-        return result;
-    }
-
-    public static ArrayList<TimerObj> timersInTimesUp(ArrayList<TimerObj> timers) {
-        ArrayList<TimerObj> result = (ArrayList<TimerObj>) timers.clone();
-        Iterator<TimerObj> it = result.iterator();
-        while(it.hasNext()) {
-            TimerObj timer = it.next();
-            if (timer.mState != TimerObj.STATE_TIMESUP) {
-                it.remove();
-            }
-        }
-        return result;
-    }
+    // Timer ids are also notification ids, so new timers get theirs from this range: above the
+    // alarm instance ids, which count up from 1, and below the fixed notification ids of
+    // TimerReceiver and StopwatchService.
+    public static final int FIRST_TIMER_ID = 1 << 30;
+    public static final int LAST_TIMER_ID = Integer.MAX_VALUE - 16;
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.alarms;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.Suppress;
+import android.util.Log;
+
+import com.android.deskclock.provider.Alarm;
+import com.android.deskclock.provider.AlarmCache;
+import com.android.deskclock.provider.AlarmInstance;
+import com.android.deskclock.provider.ClockContract;
+import com.android.deskclock.provider.DaysOfWeek;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Micro benchmarks of the alarm scheduling path, run for several alarm counts and time zones.
+ * Alarm instances are served by an in-memory content provider, so only the scheduling code and
+ * cursor parsing are measured. Results are logged in nanoseconds per alarm:
+ *
+ * adb shell am instrument -w -e class com.android.deskclock.alarms.AlarmSchedulingBenchmark \
+ *     com.android.deskclock.tests/android.test.InstrumentationTestRunner
+ * adb logcat -s AlarmSchedulingBenchmark
+ *
+ * It checks nothing and takes about a minute, so it is suppressed to keep it out of the normal
+ * test run. Remove the annotation locally to run it.
+ */
+@Suppress
+public class AlarmSchedulingBenchmark extends AndroidTestCase {
+    private static final String TAG = "AlarmSchedulingBenchmark";
+
+    private static final int[] ALARM_COUNTS = {10, 100, 1000, 10000};
+
+    private static final String[] TIME_ZONES = {
+            "UTC", "America/Los_Angeles", "Asia/Kolkata", "Australia/Lord_Howe"
+    };
+
+    // Spend at least this long on each measurement, after the same amount of warm up.
+    private static final long MIN_DURATION_NANOS = 200 * 1000 * 1000;
+
+    private static final int[] INSTANCE_STATES = {
+            AlarmInstance.SILENT_STATE,
+            AlarmInstance.LOW_NOTIFICATION_STATE,
+            AlarmInstance.HIDE_NOTIFICATION_STATE,
+            AlarmInstance.HIGH_NOTIFICATION_STATE,
+            AlarmInstance.SNOOZE_STATE,
+            AlarmInstance.FIRED_STATE,
+            AlarmInstance.MISSED_STATE
+    };
+
+    private TimeZone mDefaultTimeZone;
+
+    // Keeps results alive so the measured work can't be optimized away.
+    private long mSink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultTimeZone = TimeZone.getDefault();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultTimeZone);
+        AlarmInstance.onTimeZoneChanged();
+        // Don't leave the fake instances to the tests that run next in this process
+        AlarmCache.clear();
+        AlarmScheduler.reset();
+        super.tearDown();
+    }
+
+    public void testCreateInstanceAfter() {
+        for (String timeZone : TIME_ZONES) {
+            for (int count : ALARM_COUNTS) {
+                final List<Alarm> alarms = createAlarms(timeZone, count);
+                final Calendar now = Calendar.getInstance();
+                measure("createInstanceAfter", timeZone, count, new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Alarm alarm : alarms) {
+                            mSink += alarm.createInstanceAfter(now).mDay;
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    public void testCalculateDaysToNextAlarm() {
+        for (String timeZone : TIME_ZONES) {
+            for (int count : ALARM_COUNTS) {
+                final List<Alarm> alarms = createAlarms(timeZone, count);
+                final Calendar now = Calendar.getInstance();
+                measure("calculateDaysToNextAlarm", timeZone, count, new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Alarm alarm : alarms) {
+                            mSink += alarm.daysOfWeek.calculateDaysToNextAlarm(now);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    public void testInstanceTimeGetters() {
+        for (String timeZone : TIME_ZONES) {
+            for (int count : ALARM_COUNTS) {
+                final List<AlarmInstance> instances = createInstances(timeZone, count);
+                final Runnable getters = new Runnable() {
+                    @Override
+                    public void run() {
+                        for (AlarmInstance instance : instances) {
+                            mSink += instance.getAlarmTimeInMillis()
+                                    + instance.getLowNotificationTimeInMillis()
+                                    + instance.getHighNotificationTimeInMillis()
+                                    + instance.getMissedTimeToLiveInMillis()
+                                    + instance.getTimeoutInMillis(getContext());
+                        }
+                    }
+                };
+                measure("instanceTimeGetters", timeZone, count, getters);
+
+                // Same, but with the cached alarm times dropped before every pass
+                measure("instanceTimeGetters (uncached)", timeZone, count, new Runnable() {
+                    @Override
+                    public void run() {
+                        AlarmInstance.onTimeZoneChanged();
+                        getters.run();
+                    }
+                });
+            }
+        }
+    }
+
+    public void testRegisteredState() {
+        for (String timeZone : TIME_ZONES) {
+            for (int count : ALARM_COUNTS) {
+                final List<AlarmInstance> instances = createInstances(timeZone, count);
+                measure("registeredState", timeZone, count, new Runnable() {
+                    @Override
+                    public void run() {
+                        long now = System.currentTimeMillis();
+                        for (AlarmInstance instance : instances) {
+                            mSink += AlarmStateManager.getRegisteredState(getContext(), instance,
+                                    now);
+                            AlarmScheduler.StateChange change =
+                                    AlarmScheduler.getNextStateChange(getContext(), instance);
+                            if (change != null) {
+                                mSink += change.time;
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    public void testLoadInstances() {
+        for (String timeZone : TIME_ZONES) {
+            for (int count : ALARM_COUNTS) {
+                final MockContentResolver resolver = new MockContentResolver();
+                resolver.addProvider(ClockContract.AUTHORITY,
+                        new InstancesProvider(createInstances(timeZone, count)));
+                measure("loadInstances", timeZone, count, new Runnable() {
+                    @Override
+                    public void run() {
+                        long now = System.currentTimeMillis();
+                        for (AlarmInstance instance : AlarmInstance.getInstances(resolver, null)) {
+                            mSink += AlarmStateManager.getRegisteredState(getContext(), instance,
+                                    now);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void measure(String name, String timeZone, int count, Runnable pass) {
+        // Warm up
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < MIN_DURATION_NANOS) {
+            pass.run();
+        }
+
+        int passes = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do {
+            pass.run();
+            passes++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MIN_DURATION_NANOS);
+
+        Log.i(TAG, name + " " + timeZone + " alarms=" + count + ": " +
+                elapsed / ((long) passes * count) + " ns/alarm (" + passes + " passes, sink " +
+                (mSink & 1) + ")");
+    }
+
+    private static void useTimeZone(String timeZone) {
+        TimeZone.setDefault(TimeZone.getTimeZone(timeZone));
+        AlarmInstance.onTimeZoneChanged();
+    }
+
+    private static List<Alarm> createAlarms(String timeZone, int count) {
+        useTimeZone(timeZone);
+        Random random = new Random(count);
+        List<Alarm> alarms = new ArrayList<Alarm>(count);
+        for (int i = 0; i < count; i++) {
+            Alarm alarm = new Alarm(random.nextInt(24), random.nextInt(60));
+            alarm.id = i + 1;
+            alarm.enabled = true;
+            // A quarter of the alarms don't repeat
+            alarm.daysOfWeek = new DaysOfWeek(random.nextInt(4) == 0 ? DaysOfWeek.NO_DAYS_SET
+                    : 1 + random.nextInt(DaysOfWeek.ALL_DAYS_SET));
+            alarms.add(alarm);
+        }
+        return alarms;
+    }
+
+    private static List<AlarmInstance> createInstances(String timeZone, int count) {
+        Random random = new Random(count);
+        Calendar now = Calendar.getInstance();
+        List<AlarmInstance> instances = new ArrayList<AlarmInstance>(count);
+        for (Alarm alarm : createAlarms(timeZone, count)) {
+            // Spread instances from a day in the past to a week ahead
+            Calendar after = (Calendar) now.clone();
+            after.add(Calendar.HOUR_OF_DAY, random.nextInt(8 * 24) - 24);
+            AlarmInstance instance = alarm.createInstanceAfter(after);
+            instance.mId = alarm.id;
+            instance.mAlarmState = INSTANCE_STATES[random.nextInt(INSTANCE_STATES.length)];
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    /**
+     * In-memory stand-in for the instances table of the clock provider. Queries return every
+     * row, with the projection they ask for.
+     */
+    private static final class InstancesProvider extends MockContentProvider {
+        private final List<ContentValues> mRows = new ArrayList<ContentValues>();
+
+        InstancesProvider(List<AlarmInstance> instances) {
+            for (AlarmInstance instance : instances) {
+                mRows.add(AlarmInstance.createContentValues(instance));
+            }
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection, mRows.size());
+            Object[] row = new Object[projection.length];
+            for (ContentValues values : mRows) {
+                for (int i = 0; i < projection.length; i++) {
+                    row[i] = values.get(projection[i]);
+                }
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+}
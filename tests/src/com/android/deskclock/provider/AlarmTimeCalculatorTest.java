@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.provider;
+
+import junit.framework.TestCase;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Compares {@link AlarmTimeCalculator} with the Calendar based computation it replaced. This
+ * only depends on java.util, so it runs on the device or on a plain JVM.
+ */
+public class AlarmTimeCalculatorTest extends TestCase {
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    // 2014-01-01T00:00:00Z
+    private static final long START_TIME = 1388534400000L;
+
+    // Sample a bit more than a year so every transition of the year is crossed
+    private static final long END_TIME = START_TIME + 400 * 24 * HOUR_IN_MILLIS;
+
+    // Not a divisor of a day, so samples land on every hour of the day over time
+    private static final long STEP = 53 * HOUR_IN_MILLIS + 17 * 60 * 1000;
+
+    private static final int[][] ALARM_TIMES = {
+            {0, 0}, {0, 30}, {1, 30}, {2, 0}, {2, 30}, {3, 15}, {8, 0}, {12, 45}, {23, 59}
+    };
+
+    private static final int[] DAYS_OF_WEEK = {
+            DaysOfWeek.NO_DAYS_SET, DaysOfWeek.ALL_DAYS_SET, 0x1f, 0x60, 0x01, 0x08, 0x40, 0x15
+    };
+
+    public void testDaysToNextAlarm() {
+        for (int dayBitIndex = 0; dayBitIndex < DaysOfWeek.DAYS_IN_A_WEEK; dayBitIndex++) {
+            assertEquals(-1, AlarmTimeCalculator.getDaysToNextAlarm(dayBitIndex,
+                    DaysOfWeek.NO_DAYS_SET));
+            for (int daysOfWeek = 1; daysOfWeek <= DaysOfWeek.ALL_DAYS_SET; daysOfWeek++) {
+                int expected = 0;
+                while ((daysOfWeek & (1 << ((dayBitIndex + expected) % 7))) == 0) {
+                    expected++;
+                }
+                assertEquals(expected,
+                        AlarmTimeCalculator.getDaysToNextAlarm(dayBitIndex, daysOfWeek));
+            }
+        }
+    }
+
+    public void testMatchesCalendarInAllTimeZones() {
+        for (String id : TimeZone.getAvailableIDs()) {
+            TimeZone timeZone = TimeZone.getTimeZone(id);
+            for (long time = START_TIME; time < END_TIME; time += STEP) {
+                for (int[] alarmTime : ALARM_TIMES) {
+                    for (int daysOfWeek : DAYS_OF_WEEK) {
+                        assertMatchesCalendar(timeZone, time, alarmTime[0], alarmTime[1],
+                                daysOfWeek);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testNextAlarmTimes() {
+        TimeZone timeZone = TimeZone.getTimeZone("America/Los_Angeles");
+        long[] times = new long[10];
+
+        assertEquals(1, AlarmTimeCalculator.getNextAlarmTimes(START_TIME, timeZone, 8, 0,
+                DaysOfWeek.NO_DAYS_SET, times));
+
+        for (int daysOfWeek : DAYS_OF_WEEK) {
+            if (daysOfWeek == DaysOfWeek.NO_DAYS_SET) {
+                continue;
+            }
+            assertEquals(times.length, AlarmTimeCalculator.getNextAlarmTimes(START_TIME,
+                    timeZone, 8, 0, daysOfWeek, times));
+            long previous = START_TIME;
+            for (long time : times) {
+                assertEquals(AlarmTimeCalculator.getNextAlarmTime(previous, timeZone, 8, 0,
+                        daysOfWeek), time);
+                previous = time;
+            }
+        }
+    }
+
+    public void testDaylightSavingTransitions() {
+        TimeZone timeZone = TimeZone.getTimeZone("America/Los_Angeles");
+
+        // 2014-03-09 02:30 does not exist and moves past the gap to 03:30 PDT
+        assertEquals(1394361000000L, AlarmTimeCalculator.getNextAlarmTime(
+                1394352000000L, timeZone, 2, 30, DaysOfWeek.NO_DAYS_SET));
+
+        // 2014-11-02 01:30 happens twice and resolves to 01:30 PST
+        assertEquals(1414920600000L, AlarmTimeCalculator.getNextAlarmTime(
+                1414908000000L, timeZone, 1, 30, DaysOfWeek.NO_DAYS_SET));
+    }
+
+    private static void assertMatchesCalendar(TimeZone timeZone, long time, int hour,
+            int minutes, int daysOfWeek) {
+        Calendar expected = getNextAlarmCalendar(timeZone, time, hour, minutes, daysOfWeek);
+        if (expected.get(Calendar.HOUR_OF_DAY) != hour
+                || expected.get(Calendar.MINUTE) != minutes) {
+            // The Calendar path keeps the wall time it was moved to by a daylight saving gap
+            // on the first day, even when the alarm ends up on a later day. The calculator
+            // uses the alarm time on the day the alarm fires instead.
+            return;
+        }
+
+        long expectedTime = expected.getTimeInMillis();
+        long actual = AlarmTimeCalculator.getNextAlarmTime(time, timeZone, hour, minutes,
+                daysOfWeek);
+        String message = timeZone.getID() + " after " + time + " at " + hour + ":" + minutes
+                + " days " + Integer.toHexString(daysOfWeek);
+        if (actual != expectedTime) {
+            // A wall time that happens twice resolves to the later one when Calendar sets it
+            // directly, but can keep the earlier one when Calendar reaches it by adding days.
+            // Both must still be the same local time.
+            assertEquals(message, expectedTime + timeZone.getOffset(expectedTime),
+                    actual + timeZone.getOffset(actual));
+        }
+    }
+
+    /**
+     * The computation Alarm.createInstanceAfter used before AlarmTimeCalculator.
+     */
+    private static Calendar getNextAlarmCalendar(TimeZone timeZone, long timeInMillis,
+            int hour, int minutes, int daysOfWeek) {
+        Calendar time = Calendar.getInstance(timeZone);
+        time.setTimeInMillis(timeInMillis);
+
+        Calendar nextInstanceTime = Calendar.getInstance(timeZone);
+        nextInstanceTime.set(Calendar.YEAR, time.get(Calendar.YEAR));
+        nextInstanceTime.set(Calendar.MONTH, time.get(Calendar.MONTH));
+        nextInstanceTime.set(Calendar.DAY_OF_MONTH, time.get(Calendar.DAY_OF_MONTH));
+        nextInstanceTime.set(Calendar.HOUR_OF_DAY, hour);
+        nextInstanceTime.set(Calendar.MINUTE, minutes);
+        nextInstanceTime.set(Calendar.SECOND, 0);
+        nextInstanceTime.set(Calendar.MILLISECOND, 0);
+
+        if (nextInstanceTime.getTimeInMillis() <= time.getTimeInMillis()) {
+            nextInstanceTime.add(Calendar.DAY_OF_YEAR, 1);
+        }
+
+        if (daysOfWeek != DaysOfWeek.NO_DAYS_SET) {
+            int dayBitIndex = (nextInstanceTime.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+            int addDays = 0;
+            while ((daysOfWeek & (1 << ((dayBitIndex + addDays) % 7))) == 0) {
+                addDays++;
+            }
+            if (addDays > 0) {
+                nextInstanceTime.add(Calendar.DAY_OF_WEEK, addDays);
+            }
+        }
+        return nextInstanceTime;
+    }
+}
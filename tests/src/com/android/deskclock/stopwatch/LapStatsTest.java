@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.deskclock.stopwatch;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Compares the incremental {@link LapStats} with statistics computed over every lap. This only
+ * depends on java.util, so it runs on the device or on a plain JVM.
+ */
+public class LapStatsTest extends TestCase {
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    private static final int[] WINDOWS = {1, 3, LapStats.DEFAULT_WINDOW, 50};
+
+    public void testEmpty() {
+        LapStats stats = new LapStats(LapStats.DEFAULT_WINDOW);
+        assertEquals(0, stats.getCount());
+        assertEquals(-1, stats.getBestLap());
+        assertEquals(-1, stats.getWorstLap());
+        assertEquals(0, stats.getMeanLapTime());
+        assertEquals(0, stats.getStandardDeviation());
+        assertEquals(0, stats.getMovingAverage());
+    }
+
+    public void testMatchesFullScan() {
+        for (int window : WINDOWS) {
+            Random random = new Random(window);
+            LapStats stats = new LapStats(window);
+            long[] laps = new long[2000];
+            for (int i = 0; i < laps.length; i++) {
+                // Laps of 55 to 65 seconds, with nanosecond digits
+                laps[i] = 55 * NANOS_PER_SECOND
+                        + (long) (random.nextDouble() * 10 * NANOS_PER_SECOND);
+                stats.add(laps[i]);
+                assertMatches(laps, i + 1, window, stats);
+            }
+        }
+    }
+
+    public void testTiesKeepFirstLap() {
+        LapStats stats = new LapStats(LapStats.DEFAULT_WINDOW);
+        stats.add(5);
+        stats.add(3);
+        stats.add(7);
+        stats.add(3);
+        stats.add(7);
+        assertEquals(1, stats.getBestLap());
+        assertEquals(2, stats.getWorstLap());
+    }
+
+    public void testCopyAndClear() {
+        LapStats stats = new LapStats(2);
+        stats.add(10);
+        stats.add(20);
+        LapStats copy = new LapStats(stats);
+        stats.add(60);
+        assertEquals(2, copy.getCount());
+        assertEquals(15, copy.getMovingAverage());
+        assertEquals(40, stats.getMovingAverage());
+
+        stats.clear();
+        assertEquals(0, stats.getCount());
+        stats.add(8);
+        assertEquals(8, stats.getMovingAverage());
+        assertEquals(8, stats.getMeanLapTime());
+        assertEquals(0, stats.getBestLap());
+    }
+
+    private static void assertMatches(long[] laps, int count, int window, LapStats stats) {
+        int best = 0;
+        int worst = 0;
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            if (laps[i] < laps[best]) {
+                best = i;
+            }
+            if (laps[i] > laps[worst]) {
+                worst = i;
+            }
+            sum += laps[i];
+        }
+        double mean = sum / count;
+        double squares = 0;
+        for (int i = 0; i < count; i++) {
+            squares += (laps[i] - mean) * (laps[i] - mean);
+        }
+        long windowSum = 0;
+        int windowCount = Math.min(count, window);
+        for (int i = count - windowCount; i < count; i++) {
+            windowSum += laps[i];
+        }
+
+        assertEquals(count, stats.getCount());
+        assertEquals(best, stats.getBestLap());
+        assertEquals(laps[best], stats.getBestLapTime());
+        assertEquals(worst, stats.getWorstLap());
+        assertEquals(laps[worst], stats.getWorstLapTime());
+        // Within a microsecond, well under the hundredths shown
+        assertEquals(Math.round(mean), stats.getMeanLapTime(), 1000);
+        long deviation = count < 2 ? 0 : Math.round(Math.sqrt(squares / (count - 1)));
+        assertEquals(deviation, stats.getStandardDeviation(), 1000);
+        assertEquals(windowCount, stats.getMovingAverageCount());
+        assertEquals(windowSum / windowCount, stats.getMovingAverage());
+    }
+}